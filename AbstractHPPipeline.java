@@ -16,23 +16,33 @@
 
 package org.onosproject.drivers.hp;
 
+import com.codahale.metrics.Counter;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableList;
+import org.onlab.metrics.MetricsService;
 import org.onlab.osgi.ServiceDirectory;
 import org.onlab.util.KryoNamespace;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
+import org.onosproject.core.GroupId;
 import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.behaviour.NextGroup;
 import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.behaviour.PipelinerContext;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.DefaultTrafficSelector;
@@ -47,10 +57,7 @@ import org.onosproject.net.flow.criteria.EthCriterion;
 import org.onosproject.net.flow.criteria.IPCriterion;
 import org.onosproject.net.flow.criteria.PortCriterion;
 import org.onosproject.net.flow.criteria.VlanIdCriterion;
-import org.onosproject.net.flow.instructions.Instruction;
-import org.onosproject.net.flow.instructions.L2ModificationInstruction;
-import org.onosproject.net.flow.instructions.L3ModificationInstruction;
-import org.onosproject.net.flow.instructions.L4ModificationInstruction;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
 import org.onosproject.net.flowobjective.NextObjective;
 import org.onosproject.net.flowobjective.FlowObjectiveStore;
 import org.onosproject.net.flowobjective.ObjectiveError;
@@ -59,18 +66,28 @@ import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.flowobjective.FilteringObjective;
 import org.onosproject.net.group.DefaultGroupKey;
 import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupEvent;
 import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.meter.MeterService;
 import org.onosproject.openflow.controller.Dpid;
 import org.slf4j.Logger;
 
-import java.util.Set;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
-import java.util.TreeMap;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.onosproject.net.flow.FlowRule.Builder;
 import static org.onosproject.net.flowobjective.Objective.Operation.ADD;
@@ -93,13 +110,18 @@ import static org.slf4j.LoggerFactory.getLogger;
  * Installation of a flow entry supported in hardware in table 200 is allowed. But it strongly
  * degrades forwarding performance.
  *
+ * The occupancy of table 100 is tracked against the max_entries reported by TABLE_FEATURES:
+ * when the table is full, flow entries supported in hardware are spilled to table 200
+ * (or failed, see the driver property hardwareTableFailWhenFull).
+ *
  * ---------------------------------------------
  * --- SELECTION OF PROPER TABLE ID ---
  * --- from device manual OpenFlow v1.3 for firmware 16.04 - (Appendix A)
  * ---------------------------------------------
  * --- Hardware differences between v1, v2 and v3 modules affect which features are supported
- * in hardware/software. In this driver "TableIdForForwardingObjective()" function selects the
- * proper table ID considering the hardware features of the device and the actual FlowObjective.
+ * in hardware/software. In this driver the constraints of each module are declared in
+ * "initPlacementRules()" and compiled into HPPlacementRules, which select the proper table ID
+ * considering the hardware features of the device and the actual FlowObjective.
  *
  * ---------------------------------------------
  * --- HPE switches support OpenFlow version 1.3.1 with following limitations.
@@ -138,11 +160,23 @@ import static org.slf4j.LoggerFactory.getLogger;
  * With current implementation, in case of unsupported features a WARNING message in generated
  * in the ONOS log, but FlowRule is sent anyway to the device.
  * The device will reply with an OFP_ERROR message.
+ * With the driver property strictUnsupportedFeatures set, the ForwardingObjective is instead
+ * failed with ObjectiveError.UNSUPPORTED and no FlowRule is sent to the device.
  * Use "debug openflow events" and "debug openflow errors" on the device to locally
  * visualize detailed information on the specific error.
  *
  * TODO MAJOR: use OFP_TABLE_FEATURE messages to automate learning of unsupported features
  *
+ * ---------------------------------------------
+ * --- EXECUTION MODEL ---
+ * ---------------------------------------------
+ * forward, next and filter calls, group, flow rule and device events, as well as the outcome
+ * of the FlowRuleOperations, are queued on the HPDeviceLane of the device and executed one at
+ * a time, in order. The state of the pipeline (hardware table occupancy, prefix rules, cookies)
+ * is only read and written on the lane, and needs no locking.
+ * Different devices are processed in parallel on different lanes; devices sharing a lane
+ * are delayed by the FlowObjectiveStore calls of each other on the nextId path, see HPDeviceLane.
+ *
  */
 
 public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implements Pipeliner {
@@ -153,7 +187,60 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
     protected static final int HP_HARDWARE_TABLE = 100;
     protected static final int HP_SOFTWARE_TABLE = 200;
 
+    /**
+     * Driver properties of the flow rule write-combining queue:
+     * maximum number of rules in a batch (0 disables batching) and maximum queueing delay.
+     */
+    protected static final String FLOW_BATCH_SIZE = "flowBatchSize";
+    protected static final String FLOW_BATCH_DELAY_MICROS = "flowBatchDelayMicros";
+    private static final long DEFAULT_FLOW_BATCH_SIZE = 0;
+    private static final long DEFAULT_FLOW_BATCH_DELAY_MICROS = 500;
+
+    /**
+     * Driver property: minimum interval between two log messages about
+     * the placement of objectives, or about unsupported features, with the same reason.
+     */
+    protected static final String LOG_INTERVAL_MILLIS = "logIntervalMillis";
+    private static final long DEFAULT_LOG_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Driver property: number of placement decisions kept in the history of the device.
+     */
+    protected static final String PLACEMENT_HISTORY_SIZE = "placementHistorySize";
+    private static final long DEFAULT_PLACEMENT_HISTORY_SIZE = 256;
+
+    /**
+     * Driver properties of the occupancy of HP_HARDWARE_TABLE: number of entries kept free,
+     * and whether objectives that do not fit are failed instead of being spilled to HP_SOFTWARE_TABLE.
+     */
+    protected static final String HARDWARE_TABLE_HEADROOM = "hardwareTableHeadroom";
+    protected static final String HARDWARE_TABLE_FAIL_WHEN_FULL = "hardwareTableFailWhenFull";
+    private static final long DEFAULT_HARDWARE_TABLE_HEADROOM = 0;
+
+    /**
+     * Driver property: fail the ForwardingObjectives using unsupported features
+     * instead of sending their rules to the device.
+     */
+    protected static final String STRICT_UNSUPPORTED_FEATURES = "strictUnsupportedFeatures";
+
+    /**
+     * Driver property: maximum number of decoded NextObjective treatments kept by the device.
+     */
+    protected static final String NEXT_TREATMENT_CACHE_SIZE = "nextTreatmentCacheSize";
+    private static final long DEFAULT_NEXT_TREATMENT_CACHE_SIZE = 4096;
+
+    /**
+     * Categories of unsupported features, used as keys of metrics and sampled logs.
+     */
+    private enum UnsupportedFeature {
+        CRITERION, INSTRUCTION, L2MOD, L3MOD, L4MOD
+    }
+
     public static final int CACHE_ENTRY_EXPIRATION_PERIOD = 20;
+    public static final int PLACEMENT_CACHE_SIZE = 1024;
+
+    // Pipeline serving each device: a re-initialization replaces it and shuts the previous one down
+    private static final ConcurrentMap<DeviceId, AbstractHPPipeline> PIPELINES = new ConcurrentHashMap<>();
 
     private final Logger log = getLogger(getClass());
     protected FlowRuleService flowRuleService;
@@ -166,6 +253,7 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
     protected DeviceService deviceService;
     protected Device device;
     protected String deviceHwVersion;
+    protected HPMetrics metrics;
     protected KryoNamespace appKryo = new KryoNamespace.Builder()
             .register(GroupKey.class)
             .register(DefaultGroupKey.class)
@@ -182,38 +270,70 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
                                                       ObjectiveError.FLOWINSTALLATIONFAILED));
                 }
             }).build();
-    private Map<String, FlowRule> hwToSwRules = new TreeMap<>();
-
+    private final HPPrefixRuleRegistry prefixRules = new HPPrefixRuleRegistry();
 
+    /** Placement chosen by placementReason for each objective shape.
+     * Invalidated when the HPFeatures of the device or the groups on the device change.
+     */
+    private Cache<PlacementKey, HPPlacementReason> placementCache = CacheBuilder.newBuilder()
+            .maximumSize(PLACEMENT_CACHE_SIZE)
+            .build();
+    private final AtomicLong placementCacheHits = new AtomicLong();
+    private final AtomicLong placementCacheMisses = new AtomicLong();
+    private HPFeatures hpFeatures;
+    private long hpFeaturesVersion;
+    private final HPGroupIndex groupIndex = new HPGroupIndex();
+    private final GroupListener groupListener = new InternalGroupListener();
+    private HPFlowRuleBatcher flowRuleBatcher;
+    private HPDeviceLane lane;
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final Map<HPPlacementReason, Counter> placementCounters = new EnumMap<>(HPPlacementReason.class);
+    private final Map<UnsupportedFeature, Counter> unsupportedCounters = new EnumMap<>(UnsupportedFeature.class);
+    private HPLogLimiter<HPPlacementReason> placementLog;
+    private HPLogLimiter<UnsupportedFeature> unsupportedLog;
+    private HPPlacementHistory placementHistory;
+    private HPPlacementRules placementRules;
+    private HPTableOccupancy hardwareTable;
+    private boolean failWhenFull;
+    private boolean warmReconnect;
+    private Counter hardwareTableRejected;
+    private boolean strictUnsupportedFeatures;
+    private Counter unsupportedRejected;
+    private HPLearnedPlacements learnedPlacements;
+    private Counter hardwareRetries;
+    private HPCookieAllocator cookies;
+
+    /** Metrics of the nextId path: pendingAddNext lookups.
+     */
+    private Counter nextCacheHits;
+    private Counter nextCacheMisses;
 
-    /** Lists of unsupported features (firmware version K 16.04)
-     * If a FlowObjective uses one of these features a warning log message is generated.
+    /** Treatments of the NextObjectives, decoded once and kept until the NextObjective is removed.
+     * Bounded in size, least recently used entries are evicted first.
      */
-    protected Set<Criterion.Type> unsupportedCriteria = new HashSet<>();
-    protected Set<Instruction.Type> unsupportedInstructions = new HashSet<>();
-    protected Set<L2ModificationInstruction.L2SubType> unsupportedL2mod = new HashSet<>();
-    protected Set<L3ModificationInstruction.L3SubType> unsupportedL3mod = new HashSet<>();
-    protected Set<L4ModificationInstruction.L4SubType> unsupportedL4mod = new HashSet<>();
+    private Cache<Integer, TrafficTreatment> nextTreatments;
+    private Counter nextTreatmentHits;
+    private Counter nextTreatmentMisses;
+
 
-    /** Lists of Criteria and Instructions supported in hardware
-     * If a FlowObjective uses one of these features the FlowRule is installed in HP_SOFTWARE_TABLE.
+    /** Features of the device compiled at init(), and again when its HPFeatures change, interned with
+     * the pipelines with the same features.
+     * A ForwardingObjective uses only supported features if its signature is a subset of the supported masks.
      */
-    protected Set<Criterion.Type> hardwareCriteria = new HashSet<>();
-    protected Set<Instruction.Type> hardwareInstructions = new HashSet<>();
-    protected Set<L2ModificationInstruction.L2SubType> hardwareInstructionsL2mod = new HashSet<>();
-    protected Set<L3ModificationInstruction.L3SubType> hardwareInstructionsL3mod = new HashSet<>();
-    protected Set<L4ModificationInstruction.L4SubType> hardwareInstructionsL4mod = new HashSet<>();
-    protected Set<Group.Type> hardwareGroups = new HashSet<>();
+    private HPCapabilityProfile capabilities;
 
     /**
      * Parses a ForwardingObjective to extract a subset of criteria that can be matched in hardware.
      *
      * @param fwd The ForwardingObjective from which criteria will be extracted
+     * @param sig the signature of the ForwardingObjective
      * @param selectorBuilder a TrafficSelector.Builder that will hold the hardware match
      * @return the number of hardware matches (if 0, skip the creation of the corresponding flow rule)
      */
 
-    protected abstract int getHwMatchesAndBuild(ForwardingObjective fwd, TrafficSelector.Builder selectorBuilder);
+    protected abstract int getHwMatchesAndBuild(ForwardingObjective fwd, HPObjectiveSignature sig,
+                                                TrafficSelector.Builder selectorBuilder);
 
     /**
      * Sets default table id.
@@ -225,24 +345,115 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
     protected abstract FlowRule.Builder setDefaultTableIdForFlowObjective(Builder ruleBuilder);
 
     /**
-     * Return the proper table ID depending on the specific ForwardingObjective.
+     * Declares the model-specific hardware constraints used to select the table.
+     *
+     * Criteria, instructions and L2MODIFICATION subtypes supported in hardware are already
+     * set from the hardware criteria, instructions and L2MODIFICATION subtypes of capabilities().
+     * Rules are compiled once at init().
+     *
+     * @param rules the builder of the placement rules
+     */
+    protected abstract void initPlacementRules(HPPlacementRules.Builder rules);
+
+    /**
+     * Return the reason of the placement of the specific ForwardingObjective.
      *
      * HP switches supporting openflow have 3 tables (Pipeline Model: Standard Match)
      * Table 0 is just a shortcut to table 100
      * Table 100/200 are respectively used for rules processed in HARDWARE/SOFTWARE
      *
      * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @return HARDWARE if the rule can be installed in HP_HARDWARE_TABLE,
+     *         otherwise the first feature requiring HP_SOFTWARE_TABLE
+     */
+    protected HPPlacementReason placementReason(ForwardingObjective fwd, HPObjectiveSignature sig) {
+        return placementRules.evaluate(sig, this::installedGroup);
+    }
+
+    /**
+     * Return the proper table ID depending on the specific ForwardingObjective.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @return table id
+     */
+    protected int tableIdForForwardingObjective(ForwardingObjective fwd, HPObjectiveSignature sig) {
+        return tableFor(placementReason(fwd, sig));
+    }
+
+    /**
+     * Returns the table used for objectives placed with the given reason.
+     *
+     * @param reason the placement reason
      * @return table id
      */
-    protected abstract int tableIdForForwardingObjective(ForwardingObjective fwd);
+    protected static int tableFor(HPPlacementReason reason) {
+        return reason.isHardware() ? HP_HARDWARE_TABLE : HP_SOFTWARE_TABLE;
+    }
 
     /**
      * Return TRUE if ForwardingObjective fwd includes unsupported features.
      *
+     * The check is a subset test of the signature against the masks compiled at init(),
+     * the single offending features are only looked up to be counted and logged.
+     * Logs are rate-limited per category of feature.
+     *
      * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
      * @return boolean
      */
-    protected abstract boolean checkUnSupportedFeatures(ForwardingObjective fwd);
+    protected boolean checkUnSupportedFeatures(ForwardingObjective fwd, HPObjectiveSignature sig) {
+        HPCapabilityProfile features = capabilities;
+        if (features.supportedCriteria().containsAll(sig.criteria())
+                && features.supportedInstructions().containsAll(sig.instructions())
+                && features.supportedL2mod().containsAll(sig.l2mod())
+                && features.supportedL3mod().containsAll(sig.l3mod())
+                && features.supportedL4mod().containsAll(sig.l4mod())) {
+            return false;
+        }
+
+        unsupportedHit(UnsupportedFeature.CRITERION, firstNotIn(sig.criteria(), features.supportedCriteria()));
+        unsupportedHit(UnsupportedFeature.INSTRUCTION,
+                       firstNotIn(sig.instructions(), features.supportedInstructions()));
+        unsupportedHit(UnsupportedFeature.L2MOD, firstNotIn(sig.l2mod(), features.supportedL2mod()));
+        unsupportedHit(UnsupportedFeature.L3MOD, firstNotIn(sig.l3mod(), features.supportedL3mod()));
+        unsupportedHit(UnsupportedFeature.L4MOD, firstNotIn(sig.l4mod(), features.supportedL4mod()));
+
+        return true;
+    }
+
+    // Counts an unsupported feature and logs it, at most once per interval for each category
+    private void unsupportedHit(UnsupportedFeature category, Enum<?> feature) {
+        if (feature == null) {
+            return;
+        }
+        unsupportedCounters.get(category).inc();
+
+        long suppressed = unsupportedLog.tryAcquire(category);
+        if (suppressed >= 0) {
+            log.warn("HP Driver - unsupported {} {} on device {} ({} similar messages suppressed)",
+                     category, feature, deviceId, suppressed);
+        }
+    }
+
+    /**
+     * Returns the first element of values that is not contained in allowed.
+     * Used only to log the reason of a placement in software or an unsupported feature.
+     *
+     * @param values the values used by a ForwardingObjective
+     * @param allowed the values supported in hardware
+     * @param <E> the enum type
+     * @return the first value not allowed, null if all the values are allowed
+     */
+    protected static <E extends Enum<E>> E firstNotIn(Set<E> values, Set<E> allowed) {
+        for (E value : values) {
+            if (!allowed.contains(value)) {
+                return value;
+            }
+        }
+        return null;
+    }
 
     @Override
     public void init(DeviceId deviceId, PipelinerContext context) {
@@ -259,36 +470,242 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
         dpid = Dpid.dpid(deviceId.uri());
         device = deviceService.getDevice(deviceId);
         deviceHwVersion = device.hwVersion();
+        metrics = new HPMetrics(serviceDirectory.get(MetricsService.class), deviceId);
+        lane = new HPDeviceLane(deviceId, metrics);
+
+        AbstractHPPipeline previous = PIPELINES.put(deviceId, this);
+        if (previous != null) {
+            previous.shutdown();
+        }
+
+        for (HPPlacementReason reason : HPPlacementReason.values()) {
+            placementCounters.put(reason, metrics.counter("placement" + reason.name()));
+        }
+        for (UnsupportedFeature category : UnsupportedFeature.values()) {
+            unsupportedCounters.put(category, metrics.counter("unsupported" + category.name()));
+        }
+        long logInterval = driverProperty(LOG_INTERVAL_MILLIS, DEFAULT_LOG_INTERVAL_MILLIS);
+        placementLog = new HPLogLimiter<>(HPPlacementReason.class, logInterval);
+        unsupportedLog = new HPLogLimiter<>(UnsupportedFeature.class, logInterval);
+        placementHistory = HPPlacementHistory.register(
+                deviceId, (int) driverProperty(PLACEMENT_HISTORY_SIZE, DEFAULT_PLACEMENT_HISTORY_SIZE));
+        hardwareTable = new HPTableOccupancy(
+                0, driverProperty(HARDWARE_TABLE_HEADROOM, DEFAULT_HARDWARE_TABLE_HEADROOM));
+        failWhenFull = driverFlag(HARDWARE_TABLE_FAIL_WHEN_FULL, false);
+        warmReconnect = driverFlag(HPSwitchHandshaker.WARM_RECONNECT, false);
+        hardwareTableRejected = metrics.counter("hardwareTableRejected");
+        strictUnsupportedFeatures = driverFlag(STRICT_UNSUPPORTED_FEATURES, false);
+        unsupportedRejected = metrics.counter("unsupportedRejected");
+        learnedPlacements = HPLearnedPlacements.of(deviceId, device.swVersion());
+        hardwareRetries = metrics.counter("hardwareRetries");
+        metrics.gauge("learnedSoftwareShapes", learnedPlacements::size);
+        cookies = new HPCookieAllocator();
+        metrics.gauge("cookies", cookies::size);
+        nextCacheHits = metrics.counter("nextCacheHits");
+        nextCacheMisses = metrics.counter("nextCacheMisses");
+        metrics.gauge("nextCacheSize", pendingAddNext::size);
+        nextTreatments = CacheBuilder.newBuilder()
+                .maximumSize(driverProperty(NEXT_TREATMENT_CACHE_SIZE, DEFAULT_NEXT_TREATMENT_CACHE_SIZE))
+                .build();
+        nextTreatmentHits = metrics.counter("nextTreatmentHits");
+        nextTreatmentMisses = metrics.counter("nextTreatmentMisses");
+        metrics.gauge("nextTreatmentCacheSize", nextTreatments::size);
 
+        flowRuleBatcher = new HPFlowRuleBatcher(flowRuleService, lane,
+                                                (int) driverProperty(FLOW_BATCH_SIZE, DEFAULT_FLOW_BATCH_SIZE),
+                                                driverProperty(FLOW_BATCH_DELAY_MICROS,
+                                                               DEFAULT_FLOW_BATCH_DELAY_MICROS),
+                                                metrics);
 
         //Initialization of model specific features
-        log.info("HP Driver - Initializing unsupported features for switch {}", deviceHwVersion);
-        initUnSupportedFeatures();
+        hpFeatures = HPFeatures.getInstance(dpid);
+        compileFeatures();
 
-        log.debug("HP Driver - Initializing features supported in hardware");
-        initHardwareCriteria();
-        initHardwareInstructions();
+        // Seed the local group index, then keep it up to date with group events
+        groupService.addListener(groupListener);
+        for (Group group : groupService.getGroups(deviceId)) {
+            groupIndex.update(group);
+        }
 
-        log.debug("HP Driver - Initializing pipeline");
-        installHPTableZero();
-        installHPHardwareTable();
-        installHPSoftwareTable();
+        // Keep the prefix rule registry and the hardware table occupancy in sync with
+        // added and expired rules and with device disconnections
+        flowRuleService.addListener(flowRuleListener);
+        deviceService.addListener(deviceListener);
+        metrics.gauge("prefixRules", prefixRules::size);
+        metrics.gauge("prefixRuleFootprintBytes", prefixRules::footprint);
+
+        metrics.gauge("hardwareTableEntries", hardwareTable::size);
+        metrics.gauge("hardwareTableCapacity", hardwareTable::capacity);
+        metrics.gauge("hardwareTableSpilled", hardwareTable::spilledSize);
+
+        lane.execute(() -> {
+            rebuildState();
+
+            log.debug("HP Driver - Initializing pipeline");
+            installHPTableZero();
+            installHPHardwareTable();
+            installHPSoftwareTable();
+        });
+    }
+
+    /**
+     * Rebuilds the occupancy of HP_HARDWARE_TABLE, the rules spilled to HP_SOFTWARE_TABLE and the
+     * prefix rules from the rules of the device in the flow store, which outlive the pipeline
+     * across reconnections and restarts. Cookies only depend on the content of the rules, so the
+     * rules built again from the stored ones address the installed rules.
+     */
+    private void rebuildState() {
+        Set<FlowId> hwRuleIds = new HashSet<>();
+        List<FlowEntry> swEntries = new ArrayList<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.tableId() == HP_HARDWARE_TABLE) {
+                hardwareTable.reserve(entry);
+                hwRuleIds.add(entry.id());
+            } else if (entry.tableId() == HP_SOFTWARE_TABLE && HPCookieAllocator.isAllocated(entry.id().value())) {
+                swEntries.add(entry);
+            }
+        }
+
+        for (FlowEntry entry : swEntries) {
+            ApplicationId app = coreService.getAppId(entry.appId());
+            if (app == null) {
+                continue;
+            }
+            ForwardingObjective.Builder fb = DefaultForwardingObjective.builder()
+                    .withSelector(entry.selector())
+                    .withTreatment(entry.treatment())
+                    .withPriority(entry.priority())
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .fromApp(app);
+            if (entry.isPermanent()) {
+                fb.makePermanent();
+            } else {
+                fb.makeTemporary(entry.timeout());
+            }
+            ForwardingObjective fwd = fb.add();
+            HPObjectiveSignature sig = HPObjectiveSignature.of(fwd);
+
+            // Rules placed in hardware but installed in software have been spilled
+            HPPlacementReason reason = placementReason(fwd, sig);
+            if (reason.isHardware()) {
+                FlowRule hwTableRule = forwardingRuleBuilder(fwd, sig, reason).build();
+                hardwareTable.spill(HPCookieAllocator.cookieOf(hwTableRule), entry.id().value());
+            }
+
+            FlowRule hwRule = checkForHardwareRules(fwd, sig);
+            if (hwRule != null) {
+                hwRule = cookies.assign(hwRule);
+                if (hwRuleIds.contains(hwRule.id())) {
+                    prefixRules.acquire(entry, hwRule);
+                } else {
+                    cookies.release(hwRule.id().value());
+                }
+            }
+        }
+        log.debug("HP Driver - rebuilt state of device {}: {} entries in HP_HARDWARE_TABLE, {} spilled, " +
+                          "{} prefix rules", deviceId, hardwareTable.size(), hardwareTable.spilledSize(),
+                  prefixRules.size());
+    }
+
+    /**
+     * Stops listening to the events of the device and unregisters the placement history.
+     * Called when the device is removed or when a new pipeline replaces this one.
+     */
+    private void shutdown() {
+        log.debug("HP Driver - shutting down pipeline of device {}", deviceId);
+        groupService.removeListener(groupListener);
+        flowRuleService.removeListener(flowRuleListener);
+        deviceService.removeListener(deviceListener);
+        HPPlacementHistory.unregister(deviceId, placementHistory);
+    }
+
+    /**
+     * Reads a numeric property of the driver.
+     *
+     * @param name name of the property
+     * @param defaultValue value used if the property is missing or malformed
+     * @return value of the property
+     */
+    protected long driverProperty(String name, long defaultValue) {
+        String value = handler() != null ? handler().driver().getProperty(name) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("HP Driver - Invalid value {} for driver property {}, using {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a boolean property of the driver.
+     *
+     * @param name name of the property
+     * @param defaultValue value used if the property is missing
+     * @return value of the property
+     */
+    protected boolean driverFlag(String name, boolean defaultValue) {
+        String value = handler() != null ? handler().driver().getProperty(name) : null;
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
     }
 
     /**
      * UnSupported features are specific of each model.
+     *
+     * @param features the builder of the capabilities of the device
      */
-    protected abstract void initUnSupportedFeatures();
+    protected abstract void initUnSupportedFeatures(HPCapabilityProfile.Builder features);
 
     /**
      * Criteria supported in hardware are specific of each model.
+     *
+     * @param features the builder of the capabilities of the device
      */
-    protected abstract void initHardwareCriteria();
+    protected abstract void initHardwareCriteria(HPCapabilityProfile.Builder features);
 
     /**
      * Instructions supported in hardware are specific of each model.
+     *
+     * @param features the builder of the capabilities of the device
+     */
+    protected abstract void initHardwareInstructions(HPCapabilityProfile.Builder features);
+
+    /**
+     * Interns the features declared by the model into the profile used by checkUnSupportedFeatures,
+     * and compiles the hardware constraints into the placement rules.
+     * Called at init() and again whenever the HPFeatures of the device change.
+     */
+    private void compileFeatures() {
+        hpFeaturesVersion = hpFeatures.getVersion();
+        hardwareTable.setCapacity(hpFeatures.getHardwareTableMaxEntries());
+
+        log.info("HP Driver - Initializing unsupported features for switch {}", deviceHwVersion);
+        HPCapabilityProfile.Builder features = HPCapabilityProfile.builder();
+        initUnSupportedFeatures(features);
+
+        log.debug("HP Driver - Initializing features supported in hardware");
+        initHardwareCriteria(features);
+        initHardwareInstructions(features);
+        capabilities = features.build();
+
+        HPPlacementRules.Builder rules = HPPlacementRules.builder()
+                .criteria(capabilities.hardwareCriteria())
+                .instructions(capabilities.hardwareInstructions())
+                .l2mod(capabilities.hardwareL2mod());
+        initPlacementRules(rules);
+        placementRules = rules.build(deviceHwVersion);
+    }
+
+    /**
+     * Returns the features of the device compiled at init() or at the last change of its HPFeatures.
+     *
+     * @return the capability profile
      */
-    protected abstract void initHardwareInstructions();
+    protected HPCapabilityProfile capabilities() {
+        return capabilities;
+    }
 
     /**
      * HP Table 0 initialization.
@@ -309,7 +726,7 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
                 .forTable(HP_TABLE_ZERO)
                 .build();
 
-        this.applyRules(true, rule);
+        this.applyRules(true, cookies.assign(rule));
     }
 
     /**
@@ -332,7 +749,7 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
                 .forTable(HP_HARDWARE_TABLE)
                 .build();
 
-        this.applyRules(true, rule);
+        this.applyRules(true, cookies.assign(rule));
     }
 
     /**
@@ -346,29 +763,52 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
         FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
 
         ops = install ? ops.add(rule) : ops.remove(rule);
+        if (install && rule.tableId() == HP_HARDWARE_TABLE) {
+            hardwareTable.reserve(rule);
+        }
         if (!install) {
-            // Check if a correlated hardware rule exists
-            FlowRule f = hwToSwRules.get(rule.id().toString());
+            cookies.release(rule.id().value());
+            // Remove the correlated hardware rule, if this was its last dependent
+            FlowRule f = prefixRules.release(rule);
             if (f != null) {
+                cookies.release(f.id().value());
                 ops.remove(f);
             }
         }
-        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+        flowRuleBatcher.apply(ops.build(new FlowRuleOperationsContext() {
             @Override
             public void onSuccess(FlowRuleOperations ops) {
-                log.trace("HP Driver: provisioned " + rule.toString());
-
-                log.debug("HP Driver: - applyRules onSuccess rule {}", rule.toString());
+                log.debug("HP Driver: - applyRules onSuccess rule {}", rule);
             }
 
             @Override
             public void onError(FlowRuleOperations ops) {
-                log.debug("HP Driver: applyRules onError rule: "
-                        + rule.toString() + " in table: " + rule.tableId());
+                lane.execute(() -> releaseFailed(ops));
+                log.debug("HP Driver: applyRules onError rule: {} in table: {}", rule, rule.tableId());
             }
         }));
     }
 
+    /**
+     * Releases the cookies of the rules whose installation failed and stops counting them
+     * in the occupancy of HP_HARDWARE_TABLE. To be called on the lane of the device.
+     *
+     * @param ops the failed operations
+     */
+    private void releaseFailed(FlowRuleOperations ops) {
+        for (Set<FlowRuleOperation> stage : ops.stages()) {
+            for (FlowRuleOperation op : stage) {
+                if (op.type() != FlowRuleOperation.Type.ADD) {
+                    continue;
+                }
+                cookies.release(op.rule().id().value());
+                if (op.rule().tableId() == HP_HARDWARE_TABLE) {
+                    hardwareTable.release(op.rule());
+                }
+            }
+        }
+    }
+
     /**
      * HP software table initialization.
      * No rules required.
@@ -383,10 +823,10 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
         obj.context().ifPresent(context -> context.onError(obj, error));
     }
 
-    protected FlowRule checkForHardwareRules(ForwardingObjective fwd, long cookie) {
+    protected FlowRule checkForHardwareRules(ForwardingObjective fwd, HPObjectiveSignature sig) {
         TrafficSelector.Builder tsBuilder = DefaultTrafficSelector.builder();
 
-        int hwMatches = getHwMatchesAndBuild(fwd, tsBuilder);
+        int hwMatches = getHwMatchesAndBuild(fwd, sig, tsBuilder);
         if (hwMatches != 0) {
             TrafficTreatment fw = DefaultTrafficTreatment.builder().transition(HP_SOFTWARE_TABLE).build();
             FlowRule.Builder fb = DefaultFlowRule.builder()
@@ -407,67 +847,365 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
         }
     }
 
-    @Override
-    public void forward(ForwardingObjective fwd) {
+    /**
+     * Returns an estimate in bytes of the memory used to correlate software rules
+     * to their hardware prefix rules.
+     *
+     * @return number of bytes
+     */
+    public long getPrefixRuleFootprint() {
+        return prefixRules.footprint();
+    }
 
-        if (fwd.treatment() != null) {
-            // Deal with SPECIFIC and VERSATILE in the same manner.
+    /**
+     * Returns the group addressed by groupId, if it is installed on the device.
+     * The lookup is served by the local group index.
+     *
+     * @param groupId the group id referenced by a GROUP instruction
+     * @return the shape of the group in state ADDED, null if the group is not installed
+     */
+    protected HPGroupIndex.GroupShape installedGroup(GroupId groupId) {
+        HPGroupIndex.GroupShape group = groupIndex.get(groupId);
+        if (group != null && group.state() == Group.GroupState.ADDED) {
+            return group;
+        }
+        return null;
+    }
 
-            /** If UNSUPPORTED features included in ForwardingObjective a warning message is generated.
-             * FlowRule is anyway sent to the device, device will reply with an OFP_ERROR.
-             * Moreover, checkUnSupportedFeatures function generates further warnings specifying
-             * each unsupported feature.
-             * */
-            if (checkUnSupportedFeatures(fwd)) {
-                log.warn("HP Driver - specified ForwardingObjective contains UNSUPPORTED FEATURES");
+    /**
+     * Returns the placement of a ForwardingObjective, reusing the decision taken for
+     * previous objectives of the same shape.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @return the placement reason, from which the table is derived
+     */
+    private HPPlacementReason placeForwardingObjective(ForwardingObjective fwd, HPObjectiveSignature sig) {
+        if (hpFeatures.getVersion() != hpFeaturesVersion) {
+            log.debug("HP Driver - features of {} changed, recompiling placement rules", deviceId);
+            compileFeatures();
+            placementCache.invalidateAll();
+        }
+
+        List<HPGroupIndex.GroupShape> groupShapes = Collections.emptyList();
+        if (!sig.groups().isEmpty()) {
+            groupShapes = new ArrayList<>(sig.groups().size());
+            for (GroupId groupId : sig.groups()) {
+                groupShapes.add(installedGroup(groupId));
             }
+        }
 
-            long cookie = System.currentTimeMillis();
+        PlacementKey key = new PlacementKey(sig, groupShapes);
+        HPPlacementReason reason = placementCache.getIfPresent(key);
+        if (reason != null) {
+            placementCacheHits.incrementAndGet();
+        } else {
+            placementCacheMisses.incrementAndGet();
+            reason = placementReason(fwd, sig);
+            placementCache.put(key, reason);
+        }
 
-            //Create the FlowRule starting from the ForwardingObjective
-            FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
-                    .forDevice(deviceId)
-                    .withSelector(fwd.selector())
-                    .withTreatment(fwd.treatment())
-                    .withPriority(fwd.priority())
-                    .fromApp(fwd.appId());
+        if (!reason.isHardware()) {
+            long suppressed = placementLog.tryAcquire(reason);
+            if (suppressed >= 0) {
+                log.warn("HP Driver - ForwardingObjective {} only supported in SOFTWARE on device {}: {} " +
+                                 "({} similar messages suppressed)", fwd.id(), deviceId, reason, suppressed);
+            }
+        }
+        return reason;
+    }
 
-            int tableID = tableIdForForwardingObjective(fwd);
+    /**
+     * Admits the rule of a ForwardingObjective placed in hardware in HP_HARDWARE_TABLE,
+     * according to the occupancy of the table.
+     *
+     * When the table is full the rule is spilled to HP_SOFTWARE_TABLE, or the objective is failed
+     * if hardwareTableFailWhenFull is set. Objectives whose shape has been rejected by the device
+     * are spilled as well. Objectives spilled by an ADD stay in HP_SOFTWARE_TABLE until they are
+     * removed, so that their REMOVE addresses the rule actually installed.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @param reason the placement of the ForwardingObjective
+     * @param rule the rule built for the objective
+     * @return reason, TABLE_FULL or DEVICE_REJECTED if the rule has to be installed in HP_SOFTWARE_TABLE,
+     *         null if the objective has to be failed
+     */
+    private HPPlacementReason admitHardwareRule(ForwardingObjective fwd, HPObjectiveSignature sig,
+                                                HPPlacementReason reason, FlowRule rule) {
+        if (!reason.isHardware()) {
+            return reason;
+        }
+        if (fwd.op() != ADD) {
+            return hardwareTable.unspill(rule) ? HPPlacementReason.TABLE_FULL : reason;
+        }
+        if (hardwareTable.isSpilled(rule)) {
+            return HPPlacementReason.TABLE_FULL;
+        }
+        if (learnedPlacements.isRejected(sig)) {
+            return HPPlacementReason.DEVICE_REJECTED;
+        }
+        if (hardwareTable.contains(rule) || !hardwareTable.isFull()) {
+            hardwareTable.reserve(rule);
+            return reason;
+        }
 
-            //Table to be used depends on the specific switch hardware and ForwardingObjective
-            ruleBuilder.forTable(tableID);
+        long suppressed = placementLog.tryAcquire(HPPlacementReason.TABLE_FULL);
+        if (suppressed >= 0) {
+            log.warn("HP Driver - hardware table of device {} is full ({} of {} entries), {} ForwardingObjective {} " +
+                             "({} similar messages suppressed)", deviceId, hardwareTable.size(),
+                     hardwareTable.capacity(), failWhenFull ? "failing" : "spilling to SOFTWARE", fwd.id(),
+                     suppressed);
+        }
+        if (failWhenFull) {
+            hardwareTableRejected.inc();
+            return null;
+        }
+        return HPPlacementReason.TABLE_FULL;
+    }
 
-            if (fwd.permanent()) {
-                ruleBuilder.makePermanent();
-            } else {
-                ruleBuilder.makeTemporary(fwd.timeout());
-            }
+    /**
+     * Returns a rule built for a ForwardingObjective with its cookie, derived from the content
+     * of the rule: the REMOVE gets the cookie of the ADD. The correlation of the cookie starts
+     * on ADD and ends on REMOVE.
+     *
+     * @param fwd ForwardingObjective
+     * @param rule the rule, with its natural FlowId
+     * @return the rule with its cookie
+     */
+    private FlowRule withCookie(ForwardingObjective fwd, FlowRule rule) {
+        return fwd.op() == ADD ? cookies.assign(rule) : cookies.unassign(rule);
+    }
 
-            // If the table to be used is the software one, try to build also a flow rule
-            // for the hardware table that matches at least a portion of fields
-            if (tableID == HP_SOFTWARE_TABLE) {
-                FlowRule hwRule = checkForHardwareRules(fwd, cookie);
-                if (hwRule != null) {
-                    hwToSwRules.put(ruleBuilder.build().id().toString(), hwRule);
-                    applyRules(true, hwRule);
-                }
-            }
+    /**
+     * Records the final placement decision in the metrics and in the history of the device and,
+     * on ADD, binds the cookie of the rule to the objective and its prefix rule.
+     *
+     * The retry of a rule rejected by the device is not a new decision: it moves the objective
+     * from the rejected placement to the new one in the metrics, and is not added to the history.
+     *
+     * @param fwd ForwardingObjective
+     * @param reason the placement reason
+     * @param rule the rule built for the objective
+     * @param start System.nanoTime() at the beginning of the decision
+     * @param rejected the placement rejected by the device when retrying, null otherwise
+     */
+    private void recordPlacement(ForwardingObjective fwd, HPPlacementReason reason, FlowRule rule, long start,
+                                 HPPlacementReason rejected) {
+        placementCounters.get(reason).inc();
+        FlowRule prefix = prefixRules.prefixOf(rule);
+        if (fwd.op() == ADD) {
+            cookies.bind(rule.id().value(), fwd.id(), prefix);
+        }
+        if (rejected != null) {
+            placementCounters.get(rejected).dec();
+            return;
+        }
+        placementHistory.record(fwd.id(), fwd.op() == Objective.Operation.REMOVE, rule.tableId(), reason,
+                                prefix == null ? 0 : prefix.selector().criteria().size(),
+                                System.nanoTime() - start);
+    }
 
-            log.debug("HP Driver - installing fwd.treatment {}", fwd.toString());
+    /**
+     * Returns the number of placement decisions served by the placement cache.
+     *
+     * @return number of hits
+     */
+    public long getPlacementCacheHits() {
+        return placementCacheHits.get();
+    }
 
-            installObjective(ruleBuilder, fwd);
+    /**
+     * Returns the number of placement decisions computed by placementReason.
+     *
+     * @return number of misses
+     */
+    public long getPlacementCacheMisses() {
+        return placementCacheMisses.get();
+    }
+
+    /**
+     * Checks a ForwardingObjective for unsupported features.
+     *
+     * If UNSUPPORTED features are included in the ForwardingObjective they are counted and a
+     * rate-limited warning message is generated by checkUnSupportedFeatures.
+     * In strict mode the ADD is failed with ObjectiveError.UNSUPPORTED, otherwise the FlowRule
+     * is anyway sent to the device, that will reply with an OFP_ERROR.
+     * REMOVEs are always processed, to clean up rules installed before strict mode was set.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @return true if the objective has been failed
+     */
+    private boolean rejectUnsupported(ForwardingObjective fwd, HPObjectiveSignature sig) {
+        if (!checkUnSupportedFeatures(fwd, sig)) {
+            return false;
+        }
+        log.debug("HP Driver - ForwardingObjective {} contains UNSUPPORTED FEATURES", fwd.id());
+
+        if (strictUnsupportedFeatures && fwd.op() == ADD) {
+            unsupportedRejected.inc();
+            fail(fwd, ObjectiveError.UNSUPPORTED);
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * Creates the FlowRule builder for a ForwardingObjective having a treatment,
+     * selecting the proper table for the device.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @param reason the placement of the ForwardingObjective
+     * @return flow rule builder with table id and timeout set
+     */
+    private FlowRule.Builder forwardingRuleBuilder(ForwardingObjective fwd, HPObjectiveSignature sig,
+                                                   HPPlacementReason reason) {
+        //Create the FlowRule starting from the ForwardingObjective
+        FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .withSelector(fwd.selector())
+                .withTreatment(fwd.treatment())
+                .withPriority(fwd.priority())
+                .fromApp(fwd.appId());
+
+        //Table to be used depends on the specific switch hardware and ForwardingObjective
+        ruleBuilder.forTable(tableFor(reason));
+
+        if (fwd.permanent()) {
+            ruleBuilder.makePermanent();
         } else {
-            NextObjective nextObjective;
-            NextGroup next;
-            TrafficTreatment treatment;
+            ruleBuilder.makeTemporary(fwd.timeout());
+        }
+
+        return ruleBuilder;
+    }
+
+    /**
+     * Builds the rule for the hardware table that redirects to the software table the traffic
+     * of an objective installed in HP_SOFTWARE_TABLE, and correlates it to the software rule.
+     * Software rules with the same hardware-matchable fields share the same hardware rule.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @param rule the software rule built for the objective
+     * @return the hardware rule to be installed, null if none is needed or if it is already installed
+     */
+    private FlowRule hardwareRuleFor(ForwardingObjective fwd, HPObjectiveSignature sig, FlowRule rule) {
+        // If the table to be used is the software one, try to build also a flow rule
+        // for the hardware table that matches at least a portion of fields.
+        // On REMOVE the correlated hardware rule is removed by installObjective.
+        if (rule.tableId() != HP_SOFTWARE_TABLE || fwd.op() != ADD) {
+            return null;
+        }
+
+        FlowRule hwRule = checkForHardwareRules(fwd, sig);
+        if (hwRule == null) {
+            return null;
+        }
+        // Software rules sharing a prefix rule share its cookie as well
+        hwRule = cookies.assign(hwRule);
+        if (hardwareTable.isFull() && prefixRules.references(hwRule) == 0) {
+            // No room for a new prefix rule, traffic reaches the software table through the table-miss rule
+            cookies.release(hwRule.id().value());
+            return null;
+        }
+        if (prefixRules.acquire(rule, hwRule)) {
+            hardwareTable.reserve(hwRule);
+            return hwRule;
+        }
+        return null;
+    }
+
+    @Override
+    public void forward(ForwardingObjective fwd) {
+        lane.execute(() -> processForward(fwd));
+    }
+
+    /**
+     * Processes a ForwardingObjective on the lane of the device.
+     *
+     * @param fwd ForwardingObjective
+     */
+    private void processForward(ForwardingObjective fwd) {
+        if (fwd.treatment() != null) {
+            // Deal with SPECIFIC and VERSATILE in the same manner.
+            // Selector and treatment are walked only once, all the following checks use the signature
+            forwardTreatment(fwd, HPObjectiveSignature.of(fwd), System.nanoTime(), null);
+        } else {
+            forwardNext(fwd);
+        }
+    }
+
+    /**
+     * Places and installs a ForwardingObjective with a treatment.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @param start start time of the processing, in nanoseconds
+     * @param rejected the placement rejected by the device when retrying, null otherwise
+     */
+    private void forwardTreatment(ForwardingObjective fwd, HPObjectiveSignature sig, long start,
+                                  HPPlacementReason rejected) {
+        if (rejectUnsupported(fwd, sig)) {
+            return;
+        }
+        HPPlacementReason reason = placeForwardingObjective(fwd, sig);
+
+        FlowRule.Builder ruleBuilder = forwardingRuleBuilder(fwd, sig, reason);
+        FlowRule rule = withCookie(fwd, ruleBuilder.build());
+        HPPlacementReason admitted = admitHardwareRule(fwd, sig, reason, rule);
+        if (admitted == null) {
+            cookies.release(rule.id().value());
+            fail(fwd, ObjectiveError.FLOWINSTALLATIONFAILED);
+            return;
+        }
+        if (admitted != reason) {
+            FlowRule hwTableRule = rule;
+            reason = admitted;
+            rule = withCookie(fwd, ruleBuilder.forTable(tableFor(reason)).build());
             if (fwd.op() == ADD) {
+                cookies.release(hwTableRule.id().value());
+                hardwareTable.spill(hwTableRule, rule);
+            }
+        }
+        FlowRule hwRule = hardwareRuleFor(fwd, sig, rule);
+        recordPlacement(fwd, reason, rule, start, rejected);
+        if (hwRule != null) {
+            applyRules(true, hwRule);
+        }
+
+        log.debug("HP Driver - installing fwd.treatment {}", fwd);
+
+        HPPlacementReason placed = reason;
+        boolean retry = fwd.op() == ADD && rule.tableId() == HP_HARDWARE_TABLE;
+        installObjective(rule, fwd, retry ? () -> retryInSoftware(fwd, sig, placed) : null);
+    }
+
+    /**
+     * Installs a ForwardingObjective referencing a NextObjective, with the treatment of the next.
+     *
+     * @param fwd ForwardingObjective
+     */
+    private void forwardNext(ForwardingObjective fwd) {
+        NextObjective nextObjective;
+        NextGroup next;
+        TrafficTreatment treatment;
+        if (fwd.op() == ADD) {
+            // Treatments already decoded for this next are reused for all its forwards
+            treatment = nextTreatments.getIfPresent(fwd.nextId());
+            if (treatment != null) {
+                nextTreatmentHits.inc();
+            } else {
+                nextTreatmentMisses.inc();
                 // Give a try to the cache. Doing an operation
                 // on the store seems to be very expensive.
                 nextObjective = pendingAddNext.getIfPresent(fwd.nextId());
                 // If the next objective is not present
                 // We will try with the store
                 if (nextObjective == null) {
+                    nextCacheMisses.inc();
                     next = flowObjectiveStore.getNextGroup(fwd.nextId());
                     // We verify that next was in the store and then de-serialize
                     // the treatment in order to re-build the flow rule.
@@ -475,40 +1213,164 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
                         fwd.context().ifPresent(c -> c.onError(fwd, ObjectiveError.GROUPMISSING));
                         return;
                     }
-                    treatment = appKryo.deserialize(next.data());
+                    treatment = decodeTreatment(next);
                 } else {
+                    nextCacheHits.inc();
                     pendingAddNext.invalidate(fwd.nextId());
                     treatment = nextObjective.next().iterator().next();
                 }
-            } else {
-                // We get the NextGroup from the remove operation.
-                // Doing an operation on the store seems to be very expensive.
-                next = flowObjectiveStore.removeNextGroup(fwd.nextId());
-                if (next == null) {
-                    fwd.context().ifPresent(c -> c.onError(fwd, ObjectiveError.GROUPMISSING));
-                    return;
+                if (treatment != null) {
+                    nextTreatments.put(fwd.nextId(), treatment);
                 }
-                treatment = appKryo.deserialize(next.data());
             }
-            // If the treatment is null we cannot re-build the original flow
-            if (treatment == null) {
+        } else {
+            // We get the NextGroup from the remove operation.
+            // Doing an operation on the store seems to be very expensive.
+            next = flowObjectiveStore.removeNextGroup(fwd.nextId());
+            if (next == null) {
+                nextTreatments.invalidate(fwd.nextId());
                 fwd.context().ifPresent(c -> c.onError(fwd, ObjectiveError.GROUPMISSING));
                 return;
             }
-            // Finally we build the flow rule and push to the flowrule subsystem.
-            FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
-                    .forDevice(deviceId)
-                    .withSelector(fwd.selector())
-                    .fromApp(fwd.appId())
-                    .withPriority(fwd.priority())
-                    .withTreatment(treatment);
-            if (fwd.permanent()) {
-                ruleBuilder.makePermanent();
-            } else {
-                ruleBuilder.makeTemporary(fwd.timeout());
+            // The NextGroup is gone from the store, its decoded treatment goes with it
+            treatment = nextTreatments.getIfPresent(fwd.nextId());
+            nextTreatments.invalidate(fwd.nextId());
+            if (treatment == null) {
+                treatment = decodeTreatment(next);
             }
-            installObjective(ruleBuilder, fwd);
         }
+        // If the treatment is null we cannot re-build the original flow
+        if (treatment == null) {
+            fwd.context().ifPresent(c -> c.onError(fwd, ObjectiveError.GROUPMISSING));
+            return;
+        }
+        // Finally we build the flow rule and push to the flowrule subsystem.
+        FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .withSelector(fwd.selector())
+                .fromApp(fwd.appId())
+                .withPriority(fwd.priority())
+                .withTreatment(treatment);
+        if (fwd.permanent()) {
+            ruleBuilder.makePermanent();
+        } else {
+            ruleBuilder.makeTemporary(fwd.timeout());
+        }
+        // As all the rules of the pipeline, the rule carries a cookie: a warm reconnect keeps it
+        FlowRule rule = withCookie(fwd, ruleBuilder.build());
+        if (fwd.op() == ADD) {
+            cookies.bind(rule.id().value(), fwd.id(), null);
+        }
+        installObjective(rule, fwd, null);
+    }
+
+    /**
+     * Deserializes the treatment stored by a NextObjective.
+     *
+     * @param next the NextGroup read from the FlowObjectiveStore
+     * @return the treatment
+     */
+    private TrafficTreatment decodeTreatment(NextGroup next) {
+        return appKryo.deserialize(next.data());
+    }
+
+    /**
+     * Records the shape of a ForwardingObjective rejected by the device in HP_HARDWARE_TABLE
+     * and installs it again, this time in HP_SOFTWARE_TABLE.
+     *
+     * @param fwd ForwardingObjective
+     * @param sig the signature of the ForwardingObjective
+     * @param rejected the placement of the rule rejected by the device
+     */
+    private void retryInSoftware(ForwardingObjective fwd, HPObjectiveSignature sig, HPPlacementReason rejected) {
+        learnedPlacements.reject(sig);
+        hardwareRetries.inc();
+
+        long suppressed = placementLog.tryAcquire(HPPlacementReason.DEVICE_REJECTED);
+        if (suppressed >= 0) {
+            log.warn("HP Driver - device {} rejected ForwardingObjective {} in HARDWARE, retrying in SOFTWARE " +
+                             "({} similar messages suppressed)", deviceId, fwd.id(), suppressed);
+        }
+        forwardTreatment(fwd, sig, System.nanoTime(), rejected);
+    }
+
+    /**
+     * Processes a batch of ForwardingObjectives with single-stage FlowRuleOperations.
+     *
+     * The rules of the objectives and their rules for the hardware table that redirect traffic
+     * to the software table are submitted together; a rule touched twice by the batch, e.g. added
+     * and then removed, starts a new FlowRuleOperations, since the operations of a stage are not ordered.
+     * Success or failure is still reported to the context of each objective, according to its own rule.
+     * Objectives rejected in the hardware table are retried one by one in the software table.
+     * Objectives using a nextId are processed one by one.
+     *
+     * @param fwds the ForwardingObjectives to be processed
+     */
+    public void forward(Collection<ForwardingObjective> fwds) {
+        List<ForwardingObjective> objectives = ImmutableList.copyOf(fwds);
+        lane.execute(() -> processForwards(objectives));
+    }
+
+    private void processForwards(List<ForwardingObjective> fwds) {
+        ForwardBatch batch = new ForwardBatch();
+
+        for (ForwardingObjective fwd : fwds) {
+            if (fwd.treatment() == null) {
+                processForward(fwd);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            HPObjectiveSignature sig = HPObjectiveSignature.of(fwd);
+            if (rejectUnsupported(fwd, sig)) {
+                continue;
+            }
+            HPPlacementReason reason = placeForwardingObjective(fwd, sig);
+            FlowRule.Builder ruleBuilder = forwardingRuleBuilder(fwd, sig, reason);
+            FlowRule rule = withCookie(fwd, ruleBuilder.build());
+            HPPlacementReason admitted = admitHardwareRule(fwd, sig, reason, rule);
+            if (admitted == null) {
+                cookies.release(rule.id().value());
+                fail(fwd, ObjectiveError.FLOWINSTALLATIONFAILED);
+                continue;
+            }
+            if (admitted != reason) {
+                FlowRule hwTableRule = rule;
+                reason = admitted;
+                rule = withCookie(fwd, ruleBuilder.forTable(tableFor(reason)).build());
+                if (fwd.op() == ADD) {
+                    cookies.release(hwTableRule.id().value());
+                    hardwareTable.spill(hwTableRule, rule);
+                }
+            }
+
+            FlowRule hwRule = null;
+            switch (fwd.op()) {
+                case ADD:
+                    hwRule = hardwareRuleFor(fwd, sig, rule);
+                    recordPlacement(fwd, reason, rule, start, null);
+                    break;
+                case REMOVE:
+                    recordPlacement(fwd, reason, rule, start, null);
+                    hwRule = prefixRules.release(rule);
+                    if (hwRule != null) {
+                        cookies.release(hwRule.id().value());
+                    }
+                    break;
+                default:
+                    log.warn("HP Driver - Unknown operation {}", fwd.op());
+                    fail(fwd, ObjectiveError.UNSUPPORTED);
+                    continue;
+            }
+
+            if (batch.touches(rule) || batch.touches(hwRule)) {
+                batch.submit();
+                batch = new ForwardBatch();
+            }
+            batch.add(fwd, sig, reason, rule, hwRule);
+        }
+
+        batch.submit();
     }
 
     /**
@@ -518,52 +1380,96 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
      * @param objective   objective to be installed
      */
     protected void installObjective(FlowRule.Builder ruleBuilder, Objective objective) {
+        installObjective(ruleBuilder.build(), objective, null);
+    }
+
+    /**
+     * Installs objective, possibly retrying it if the device rejects its rule in HP_HARDWARE_TABLE.
+     *
+     * @param rule        flow rule built from objective
+     * @param objective   objective to be installed
+     * @param retry       executed on the lane of the device, instead of failing the objective,
+     *                    if the rule is rejected in HP_HARDWARE_TABLE; null to fail the objective
+     */
+    private void installObjective(FlowRule rule, Objective objective, Runnable retry) {
         FlowRuleOperations.Builder flowBuilder = FlowRuleOperations.builder();
 
         switch (objective.op()) {
             case ADD:
-                log.trace("HP Driver - Requested ADD of objective " + objective.toString());
-                FlowRule addRule = ruleBuilder.build();
+                log.trace("HP Driver - Requested ADD of objective {}", objective);
+                FlowRule addRule = rule;
 
-                log.trace("HP Driver - built rule is " + addRule.toString());
+                log.trace("HP Driver - built rule is {}", addRule);
                 flowBuilder.add(addRule);
                 break;
             case REMOVE:
-                log.trace("HP Driver - Requested REMOVE of objective " + objective.toString());
-                FlowRule removeRule = ruleBuilder.build();
+                log.trace("HP Driver - Requested REMOVE of objective {}", objective);
+                FlowRule removeRule = rule;
 
-                FlowRule f = hwToSwRules.get(removeRule.id().toString());
+                // Remove the correlated hardware rule, if this was its last dependent
+                FlowRule f = prefixRules.release(removeRule);
                 if (f != null) {
+                    cookies.release(f.id().value());
                     flowBuilder.remove(f);
                 }
 
-                log.trace("HP Driver - built rule is " + removeRule.toString());
+                log.trace("HP Driver - built rule is {}", removeRule);
                 flowBuilder.remove(removeRule);
                 break;
             default:
                 log.warn("HP Driver - Unknown operation {}", objective.op());
         }
 
-        flowRuleService.apply(flowBuilder.build(new FlowRuleOperationsContext() {
+        flowRuleBatcher.apply(flowBuilder.build(new FlowRuleOperationsContext() {
             @Override
             public void onSuccess(FlowRuleOperations ops) {
                 objective.context().ifPresent(context -> context.onSuccess(objective));
-                log.trace("HP Driver - Installed objective " + objective.toString());
+                log.trace("HP Driver - Installed objective {}", objective);
             }
 
             @Override
             public void onError(FlowRuleOperations ops) {
-                objective.context()
-                        .ifPresent(context -> context.onError(objective, ObjectiveError.FLOWINSTALLATIONFAILED));
-                log.trace("HP Driver - Objective installation failed" + objective.toString());
+                lane.execute(() -> installFailed(ops, rule, objective, retry));
             }
         }));
     }
 
+    /**
+     * Cleans up after the failed installation of an objective, on the lane of the device.
+     *
+     * @param ops the failed operations
+     * @param rule flow rule built from objective
+     * @param objective objective whose installation failed
+     * @param retry executed instead of failing the objective if the rule is rejected in HP_HARDWARE_TABLE
+     */
+    private void installFailed(FlowRuleOperations ops, FlowRule rule, Objective objective, Runnable retry) {
+        releaseFailed(ops);
+        if (retry != null && rule.tableId() == HP_HARDWARE_TABLE && deviceService.isAvailable(deviceId)) {
+            retry.run();
+            return;
+        }
+        if (objective.op() == ADD) {
+            // The failed rule no longer needs its hardware rule
+            FlowRule f = prefixRules.release(rule);
+            if (f != null) {
+                applyRules(false, f);
+            }
+        }
+        objective.context()
+                .ifPresent(context -> context.onError(objective, ObjectiveError.FLOWINSTALLATIONFAILED));
+        log.trace("HP Driver - Objective installation failed {}", objective);
+    }
+
     @Override
     public void next(NextObjective nextObjective) {
+        lane.execute(() -> processNext(nextObjective));
+    }
+
+    private void processNext(NextObjective nextObjective) {
         switch (nextObjective.op()) {
             case ADD:
+                // A new NextObjective with the same id replaces the decoded treatment
+                nextTreatments.invalidate(nextObjective.id());
                 // We insert the value in the cache
                 pendingAddNext.put(nextObjective.id(), nextObjective);
                 // Then in the store, this will unblock the queued fwd obj
@@ -573,6 +1479,8 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
                 );
                 break;
             case REMOVE:
+                nextTreatments.invalidate(nextObjective.id());
+                pendingAddNext.invalidate(nextObjective.id());
                 break;
             default:
                 log.warn("Unsupported operation {}", nextObjective.op());
@@ -588,13 +1496,15 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
 
     @Override
     public void filter(FilteringObjective filteringObjective) {
-        if (filteringObjective.type() == FilteringObjective.Type.PERMIT) {
-            processFilter(filteringObjective,
-                          filteringObjective.op() == Objective.Operation.ADD,
-                          filteringObjective.appId());
-        } else {
-            fail(filteringObjective, ObjectiveError.UNSUPPORTED);
-        }
+        lane.execute(() -> {
+            if (filteringObjective.type() == FilteringObjective.Type.PERMIT) {
+                processFilter(filteringObjective,
+                              filteringObjective.op() == Objective.Operation.ADD,
+                              filteringObjective.appId());
+            } else {
+                fail(filteringObjective, ObjectiveError.UNSUPPORTED);
+            }
+        });
     }
 
     /**
@@ -627,21 +1537,21 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
                 FlowRule.Builder rule = processEthFilter(filt, eth, port);
                 rule.forDevice(deviceId)
                         .fromApp(applicationId);
-                ops = install ? ops.add(rule.build()) : ops.remove(rule.build());
+                ops = install ? ops.add(cookies.assign(rule.build())) : ops.remove(cookies.unassign(rule.build()));
 
             } else if (c.type() == Criterion.Type.VLAN_VID) {
                 VlanIdCriterion vlan = (VlanIdCriterion) c;
                 FlowRule.Builder rule = processVlanFilter(filt, vlan, port);
                 rule.forDevice(deviceId)
                         .fromApp(applicationId);
-                ops = install ? ops.add(rule.build()) : ops.remove(rule.build());
+                ops = install ? ops.add(cookies.assign(rule.build())) : ops.remove(cookies.unassign(rule.build()));
 
             } else if (c.type() == Criterion.Type.IPV4_DST) {
                 IPCriterion ip = (IPCriterion) c;
                 FlowRule.Builder rule = processIpFilter(filt, ip, port);
                 rule.forDevice(deviceId)
                         .fromApp(applicationId);
-                ops = install ? ops.add(rule.build()) : ops.remove(rule.build());
+                ops = install ? ops.add(cookies.assign(rule.build())) : ops.remove(cookies.unassign(rule.build()));
 
             } else {
                 log.warn("Driver does not currently process filtering condition"
@@ -659,6 +1569,7 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
 
             @Override
             public void onError(FlowRuleOperations ops) {
+                lane.execute(() -> releaseFailed(ops));
                 fail(filt, ObjectiveError.FLOWINSTALLATIONFAILED);
                 log.trace("HP Driver - Failed to apply filtering rules");
             }
@@ -674,6 +1585,254 @@ public abstract class AbstractHPPipeline extends AbstractHandlerBehaviour implem
     protected abstract Builder processIpFilter(FilteringObjective filt,
                                                IPCriterion ip, PortCriterion port);
 
+    /**
+     * ForwardingObjectives of a batch submitted in the same single-stage FlowRuleOperations,
+     * in which each rule appears at most once. The outcome is processed on the lane of the device.
+     */
+    private final class ForwardBatch implements FlowRuleOperationsContext {
+
+        private final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        private final Set<FlowId> ruleIds = new HashSet<>();
+        private final Map<ForwardingObjective, FlowRule> rules = new IdentityHashMap<>();
+        private final Map<ForwardingObjective, HPObjectiveSignature> sigs = new IdentityHashMap<>();
+        private final Map<ForwardingObjective, HPPlacementReason> reasons = new IdentityHashMap<>();
+        // The outcome is reported once, even if the flow subsystem calls back more than once
+        private boolean reported;
+
+        /**
+         * Returns true if the rule is already part of the batch.
+         *
+         * @param rule the rule, may be null
+         * @return boolean
+         */
+        boolean touches(FlowRule rule) {
+            return rule != null && ruleIds.contains(rule.id());
+        }
+
+        /**
+         * Adds an objective to the batch.
+         *
+         * @param fwd ForwardingObjective
+         * @param sig the signature of the ForwardingObjective
+         * @param reason the placement of the ForwardingObjective
+         * @param rule the rule of the objective
+         * @param hwRule the prefix rule to be added on ADD or removed on REMOVE, null if none
+         */
+        void add(ForwardingObjective fwd, HPObjectiveSignature sig, HPPlacementReason reason, FlowRule rule,
+                 FlowRule hwRule) {
+            if (fwd.op() == ADD) {
+                if (hwRule != null) {
+                    ops.add(hwRule);
+                }
+                ops.add(rule);
+            } else {
+                if (hwRule != null) {
+                    ops.remove(hwRule);
+                }
+                ops.remove(rule);
+            }
+            if (hwRule != null) {
+                ruleIds.add(hwRule.id());
+            }
+            ruleIds.add(rule.id());
+            rules.put(fwd, rule);
+            sigs.put(fwd, sig);
+            reasons.put(fwd, reason);
+        }
+
+        void submit() {
+            if (rules.isEmpty()) {
+                return;
+            }
+            log.debug("HP Driver - installing batch of {} ForwardingObjectives", rules.size());
+            flowRuleBatcher.apply(ops.build(this));
+        }
+
+        @Override
+        public void onSuccess(FlowRuleOperations ops) {
+            lane.execute(() -> {
+                if (!reported) {
+                    reported = true;
+                    rules.keySet().forEach(AbstractHPPipeline.this::pass);
+                }
+            });
+        }
+
+        @Override
+        public void onError(FlowRuleOperations ops) {
+            lane.execute(() -> failed(ops));
+        }
+
+        private void failed(FlowRuleOperations ops) {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            Set<FlowId> failed = new HashSet<>();
+            ops.stages().forEach(stage -> stage.forEach(op -> failed.add(op.rule().id())));
+            releaseFailed(ops);
+
+            boolean available = deviceService.isAvailable(deviceId);
+            int failures = 0;
+            for (Map.Entry<ForwardingObjective, FlowRule> entry : rules.entrySet()) {
+                ForwardingObjective fwd = entry.getKey();
+                FlowRule rule = entry.getValue();
+                // A failed prefix rule alone does not fail its objectives: the table-miss rule
+                // of HP_HARDWARE_TABLE still sends their traffic to HP_SOFTWARE_TABLE
+                if (!failed.contains(rule.id())) {
+                    pass(fwd);
+                    continue;
+                }
+                failures++;
+                if (fwd.op() == ADD) {
+                    // The failed rule no longer needs its prefix rule
+                    FlowRule f = prefixRules.release(rule);
+                    if (f != null && !failed.contains(f.id())) {
+                        applyRules(false, f);
+                    }
+                    if (available && rule.tableId() == HP_HARDWARE_TABLE) {
+                        retryInSoftware(fwd, sigs.get(fwd), reasons.get(fwd));
+                        continue;
+                    }
+                }
+                fail(fwd, ObjectiveError.FLOWINSTALLATIONFAILED);
+            }
+            log.trace("HP Driver - {} of {} ForwardingObjectives failed", failures, rules.size());
+        }
+    }
+
+    /**
+     * Shape of a ForwardingObjective: its signature and the shapes of the groups it references.
+     * A null shape stands for a group not installed on the device.
+     */
+    private static final class PlacementKey {
+
+        private final HPObjectiveSignature sig;
+        private final List<HPGroupIndex.GroupShape> groupShapes;
+
+        PlacementKey(HPObjectiveSignature sig, List<HPGroupIndex.GroupShape> groupShapes) {
+            this.sig = sig;
+            this.groupShapes = groupShapes;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sig, groupShapes);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PlacementKey)) {
+                return false;
+            }
+            PlacementKey that = (PlacementKey) obj;
+            return sig.equals(that.sig) && groupShapes.equals(that.groupShapes);
+        }
+    }
+
+    /**
+     * Updates the group index when the groups of the device change.
+     * Cached placements need no invalidation, their keys include the shapes of the referenced groups.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.subject().deviceId().equals(deviceId);
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            lane.execute(() -> {
+                if (event.type() == GroupEvent.Type.GROUP_REMOVED) {
+                    groupIndex.remove(event.subject());
+                } else {
+                    groupIndex.update(event.subject());
+                }
+            });
+        }
+    }
+
+    private class InternalFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return (event.type() == FlowRuleEvent.Type.RULE_ADDED
+                    || event.type() == FlowRuleEvent.Type.RULE_REMOVED)
+                    && event.subject().deviceId().equals(deviceId);
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            lane.execute(() -> ruleEvent(event));
+        }
+
+        private void ruleEvent(FlowRuleEvent event) {
+            FlowRule rule = event.subject();
+            if (event.type() == FlowRuleEvent.Type.RULE_ADDED) {
+                if (rule.tableId() == HP_HARDWARE_TABLE) {
+                    hardwareTable.reserve(rule);
+                }
+                return;
+            }
+
+            if (rule.tableId() == HP_HARDWARE_TABLE) {
+                hardwareTable.release(rule);
+            } else {
+                hardwareTable.softwareRuleRemoved(rule);
+            }
+            if (HPCookieAllocator.isAllocated(rule.id().value())) {
+                log.trace("HP Driver - rule {} of objective {} removed from device {}", rule.id(),
+                          cookies.objectiveOf(rule.id().value()), deviceId);
+                cookies.release(rule.id().value());
+            }
+
+            // Software rules removed by the device, e.g. expired, release their prefix rule
+            FlowRule f = prefixRules.ruleRemoved(rule);
+            if (f != null) {
+                applyRules(false, f);
+            }
+        }
+    }
+
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.subject().id().equals(deviceId)
+                    && (event.type() == DeviceEvent.Type.DEVICE_REMOVED
+                    || event.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED);
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            if (event.type() == DeviceEvent.Type.DEVICE_REMOVED
+                    && PIPELINES.remove(deviceId, AbstractHPPipeline.this)) {
+                shutdown();
+            }
+            if (event.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED
+                    && deviceService.isAvailable(deviceId)) {
+                return;
+            }
+            if (warmReconnect) {
+                // Rules are kept by the handshaker on reconnection: the state is kept as well,
+                // and the pipeline initialized on reconnection rebuilds it from the flow store
+                return;
+            }
+            // Rules are deleted by the handshaker on reconnection
+            lane.execute(() -> {
+                log.debug("HP Driver - device {} disconnected, releasing {} prefix rules ({} bytes)",
+                          deviceId, prefixRules.size(), prefixRules.footprint());
+                prefixRules.clear();
+                hardwareTable.clear();
+                cookies.clear();
+            });
+        }
+    }
+
     private class SingleGroup implements NextGroup {
 
         private TrafficTreatment nextActions;
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ *  Persistent cache of the features read from TABLE_FEATURES, keyed by hardware and
+ *  software version of the switch.
+ *
+ *  The cache is a single binary file, read when it is opened:
+ *
+ *  <pre>
+ *  magic (4) | format (4) | schema (8) | count (4)
+ *  count x [ key length (2) | key (UTF-8) | record length (4) | HPFeatures binary form ]
+ *  </pre>
+ *
+ *  Each record carries the fingerprint of the features and the models of their tables,
+ *  verified and decoded when it is restored.
+ *  Files written with a different schema, i.e. with different enum constants, are ignored.
+ *  The file is rewritten, through a temporary file, when new features are stored.
+ */
+
+public final class HPCapabilityCache {
+
+    private static final int MAGIC = 0x48504343;
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final ConcurrentMap<Path, HPCapabilityCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Logger log = getLogger(getClass());
+
+    private final Path file;
+    private final Map<String, byte[]> records = new ConcurrentHashMap<>();
+
+    private HPCapabilityCache(Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Returns the cache backed by a file, reading the file the first time it is opened.
+     *
+     * @param file the cache file
+     * @return the cache
+     */
+    public static HPCapabilityCache open(Path file) {
+        return CACHES.computeIfAbsent(file.toAbsolutePath(), HPCapabilityCache::new);
+    }
+
+    /**
+     * Restores the features of a switch model and firmware.
+     *
+     * @param hwVersion hardware description of the switch
+     * @param swVersion software description of the switch
+     * @param features the features of the switch, replaced on success
+     * @return true if the features have been restored
+     */
+    public boolean restore(String hwVersion, String swVersion, HPFeatures features) {
+        byte[] record = records.get(key(hwVersion, swVersion));
+        if (record == null) {
+            return false;
+        }
+        if (!features.decode(ByteBuffer.wrap(record))) {
+            records.remove(key(hwVersion, swVersion));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores the features of a switch model and firmware, rewriting the file if they changed.
+     *
+     * @param hwVersion hardware description of the switch
+     * @param swVersion software description of the switch
+     * @param features the features read from TABLE_FEATURES
+     */
+    public synchronized void store(String hwVersion, String swVersion, HPFeatures features) {
+        byte[] record = features.encode();
+
+        byte[] previous = records.put(key(hwVersion, swVersion), record);
+        if (Arrays.equals(previous, record)) {
+            return;
+        }
+        if (previous != null) {
+            log.info("HP Driver - features of {} {} changed, updating capability cache", hwVersion, swVersion);
+        }
+        save();
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    private static String key(String hwVersion, String swVersion) {
+        return hwVersion + '\0' + swVersion;
+    }
+
+    // Reads all the records of the file
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (Files.size(file) < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != FORMAT
+                    || in.readLong() != HPFeatures.schema()) {
+                log.info("HP Driver - ignoring capability cache {} written with another format", file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                records.put(new String(key, StandardCharsets.UTF_8), record);
+            }
+            log.info("HP Driver - loaded {} entries from capability cache {}", records.size(), file);
+        } catch (EOFException e) {
+            log.warn("HP Driver - truncated capability cache {}", file);
+            records.clear();
+        } catch (IOException | RuntimeException e) {
+            log.warn("HP Driver - unable to read capability cache {}", file, e);
+            records.clear();
+        }
+    }
+
+    // Writes all the records to a temporary file, then replaces the cache file
+    private void save() {
+        int size = HEADER_SIZE;
+        Map<byte[], byte[]> encoded = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            encoded.put(key, entry.getValue());
+            size += Short.BYTES + key.length + Integer.BYTES + entry.getValue().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(FORMAT).putLong(HPFeatures.schema()).putInt(encoded.size());
+        for (Map.Entry<byte[], byte[]> entry : encoded.entrySet()) {
+            buffer.putShort((short) entry.getKey().length).put(entry.getKey());
+            buffer.putInt(entry.getValue().length).put(entry.getValue());
+        }
+        buffer.flip();
+
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("HP Driver - unable to write capability cache {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.flow.instructions.L3ModificationInstruction;
+import org.onosproject.net.flow.instructions.L4ModificationInstruction;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *  Immutable capabilities of a switch: features unsupported at all and features
+ *  supported in hardware, with the complements of the unsupported sets.
+ *
+ *  Profiles are interned by content, so HPFeatures and pipelines of switches with the
+ *  same model and firmware share a single instance. Sets are exposed as unmodifiable
+ *  views of EnumSets: subset tests on them are bitmask operations and no copy is made.
+ */
+
+public final class HPCapabilityProfile {
+
+    private static final Interner<HPCapabilityProfile> PROFILES = Interners.newWeakInterner();
+
+    private final Set<Criterion.Type> unsupportedCriteria;
+    private final Set<Instruction.Type> unsupportedInstructions;
+    private final Set<L2ModificationInstruction.L2SubType> unsupportedL2mod;
+    private final Set<L3ModificationInstruction.L3SubType> unsupportedL3mod;
+    private final Set<L4ModificationInstruction.L4SubType> unsupportedL4mod;
+
+    private final Set<Criterion.Type> hardwareCriteria;
+    private final Set<Instruction.Type> hardwareInstructions;
+    private final Set<L2ModificationInstruction.L2SubType> hardwareL2mod;
+    private final Set<L3ModificationInstruction.L3SubType> hardwareL3mod;
+    private final Set<L4ModificationInstruction.L4SubType> hardwareL4mod;
+
+    private final Set<Criterion.Type> supportedCriteria;
+    private final Set<Instruction.Type> supportedInstructions;
+    private final Set<L2ModificationInstruction.L2SubType> supportedL2mod;
+    private final Set<L3ModificationInstruction.L3SubType> supportedL3mod;
+    private final Set<L4ModificationInstruction.L4SubType> supportedL4mod;
+
+    private final int hash;
+
+    private HPCapabilityProfile(Builder b) {
+        unsupportedCriteria = view(b.unsupportedCriteria);
+        unsupportedInstructions = view(b.unsupportedInstructions);
+        unsupportedL2mod = view(b.unsupportedL2mod);
+        unsupportedL3mod = view(b.unsupportedL3mod);
+        unsupportedL4mod = view(b.unsupportedL4mod);
+
+        hardwareCriteria = view(b.hardwareCriteria);
+        hardwareInstructions = view(b.hardwareInstructions);
+        hardwareL2mod = view(b.hardwareL2mod);
+        hardwareL3mod = view(b.hardwareL3mod);
+        hardwareL4mod = view(b.hardwareL4mod);
+
+        supportedCriteria = Collections.unmodifiableSet(EnumSet.complementOf(b.unsupportedCriteria));
+        supportedInstructions = Collections.unmodifiableSet(EnumSet.complementOf(b.unsupportedInstructions));
+        supportedL2mod = Collections.unmodifiableSet(EnumSet.complementOf(b.unsupportedL2mod));
+        supportedL3mod = Collections.unmodifiableSet(EnumSet.complementOf(b.unsupportedL3mod));
+        supportedL4mod = Collections.unmodifiableSet(EnumSet.complementOf(b.unsupportedL4mod));
+
+        hash = sets().hashCode();
+    }
+
+    private static <E extends Enum<E>> Set<E> view(EnumSet<E> set) {
+        return Collections.unmodifiableSet(EnumSet.copyOf(set));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns a builder initialized with the capabilities of this profile.
+     *
+     * @return the builder
+     */
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.unsupportedCriteria.addAll(unsupportedCriteria);
+        b.unsupportedInstructions.addAll(unsupportedInstructions);
+        b.unsupportedL2mod.addAll(unsupportedL2mod);
+        b.unsupportedL3mod.addAll(unsupportedL3mod);
+        b.unsupportedL4mod.addAll(unsupportedL4mod);
+        b.hardwareCriteria.addAll(hardwareCriteria);
+        b.hardwareInstructions.addAll(hardwareInstructions);
+        b.hardwareL2mod.addAll(hardwareL2mod);
+        b.hardwareL3mod.addAll(hardwareL3mod);
+        b.hardwareL4mod.addAll(hardwareL4mod);
+        return b;
+    }
+
+    public Set<Criterion.Type> unsupportedCriteria() {
+        return unsupportedCriteria;
+    }
+
+    public Set<Instruction.Type> unsupportedInstructions() {
+        return unsupportedInstructions;
+    }
+
+    public Set<L2ModificationInstruction.L2SubType> unsupportedL2mod() {
+        return unsupportedL2mod;
+    }
+
+    public Set<L3ModificationInstruction.L3SubType> unsupportedL3mod() {
+        return unsupportedL3mod;
+    }
+
+    public Set<L4ModificationInstruction.L4SubType> unsupportedL4mod() {
+        return unsupportedL4mod;
+    }
+
+    public Set<Criterion.Type> hardwareCriteria() {
+        return hardwareCriteria;
+    }
+
+    public Set<Instruction.Type> hardwareInstructions() {
+        return hardwareInstructions;
+    }
+
+    public Set<L2ModificationInstruction.L2SubType> hardwareL2mod() {
+        return hardwareL2mod;
+    }
+
+    public Set<L3ModificationInstruction.L3SubType> hardwareL3mod() {
+        return hardwareL3mod;
+    }
+
+    public Set<L4ModificationInstruction.L4SubType> hardwareL4mod() {
+        return hardwareL4mod;
+    }
+
+    public Set<Criterion.Type> supportedCriteria() {
+        return supportedCriteria;
+    }
+
+    public Set<Instruction.Type> supportedInstructions() {
+        return supportedInstructions;
+    }
+
+    public Set<L2ModificationInstruction.L2SubType> supportedL2mod() {
+        return supportedL2mod;
+    }
+
+    public Set<L3ModificationInstruction.L3SubType> supportedL3mod() {
+        return supportedL3mod;
+    }
+
+    public Set<L4ModificationInstruction.L4SubType> supportedL4mod() {
+        return supportedL4mod;
+    }
+
+    /**
+     * Returns the unsupported and the hardware sets, in the order of Builder.sets().
+     *
+     * @return the ten sets
+     */
+    public List<Set<? extends Enum<?>>> sets() {
+        return Arrays.asList(unsupportedCriteria, unsupportedInstructions, unsupportedL2mod,
+                             unsupportedL3mod, unsupportedL4mod, hardwareCriteria, hardwareInstructions,
+                             hardwareL2mod, hardwareL3mod, hardwareL4mod);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HPCapabilityProfile)) {
+            return false;
+        }
+        HPCapabilityProfile that = (HPCapabilityProfile) obj;
+        return hash == that.hash && sets().equals(that.sets());
+    }
+
+    /**
+     * Mutable capabilities, interned into a profile by build().
+     */
+    public static final class Builder {
+
+        private final EnumSet<Criterion.Type> unsupportedCriteria = EnumSet.noneOf(Criterion.Type.class);
+        private final EnumSet<Instruction.Type> unsupportedInstructions = EnumSet.noneOf(Instruction.Type.class);
+        private final EnumSet<L2ModificationInstruction.L2SubType> unsupportedL2mod =
+                EnumSet.noneOf(L2ModificationInstruction.L2SubType.class);
+        private final EnumSet<L3ModificationInstruction.L3SubType> unsupportedL3mod =
+                EnumSet.noneOf(L3ModificationInstruction.L3SubType.class);
+        private final EnumSet<L4ModificationInstruction.L4SubType> unsupportedL4mod =
+                EnumSet.noneOf(L4ModificationInstruction.L4SubType.class);
+
+        private final EnumSet<Criterion.Type> hardwareCriteria = EnumSet.noneOf(Criterion.Type.class);
+        private final EnumSet<Instruction.Type> hardwareInstructions = EnumSet.noneOf(Instruction.Type.class);
+        private final EnumSet<L2ModificationInstruction.L2SubType> hardwareL2mod =
+                EnumSet.noneOf(L2ModificationInstruction.L2SubType.class);
+        private final EnumSet<L3ModificationInstruction.L3SubType> hardwareL3mod =
+                EnumSet.noneOf(L3ModificationInstruction.L3SubType.class);
+        private final EnumSet<L4ModificationInstruction.L4SubType> hardwareL4mod =
+                EnumSet.noneOf(L4ModificationInstruction.L4SubType.class);
+
+        private Builder() {
+        }
+
+        public EnumSet<Criterion.Type> unsupportedCriteria() {
+            return unsupportedCriteria;
+        }
+
+        public EnumSet<Instruction.Type> unsupportedInstructions() {
+            return unsupportedInstructions;
+        }
+
+        public EnumSet<L2ModificationInstruction.L2SubType> unsupportedL2mod() {
+            return unsupportedL2mod;
+        }
+
+        public EnumSet<L3ModificationInstruction.L3SubType> unsupportedL3mod() {
+            return unsupportedL3mod;
+        }
+
+        public EnumSet<L4ModificationInstruction.L4SubType> unsupportedL4mod() {
+            return unsupportedL4mod;
+        }
+
+        public EnumSet<Criterion.Type> hardwareCriteria() {
+            return hardwareCriteria;
+        }
+
+        public EnumSet<Instruction.Type> hardwareInstructions() {
+            return hardwareInstructions;
+        }
+
+        public EnumSet<L2ModificationInstruction.L2SubType> hardwareL2mod() {
+            return hardwareL2mod;
+        }
+
+        public EnumSet<L3ModificationInstruction.L3SubType> hardwareL3mod() {
+            return hardwareL3mod;
+        }
+
+        public EnumSet<L4ModificationInstruction.L4SubType> hardwareL4mod() {
+            return hardwareL4mod;
+        }
+
+        /**
+         * Returns the mutable sets, in the order of HPCapabilityProfile.sets().
+         *
+         * @return the ten sets
+         */
+        public List<Set<? extends Enum<?>>> sets() {
+            return Arrays.asList(unsupportedCriteria, unsupportedInstructions, unsupportedL2mod,
+                                 unsupportedL3mod, unsupportedL4mod, hardwareCriteria, hardwareInstructions,
+                                 hardwareL2mod, hardwareL3mod, hardwareL4mod);
+        }
+
+        /**
+         * Returns the shared profile with these capabilities.
+         *
+         * @return the interned profile
+         */
+        public HPCapabilityProfile build() {
+            return PROFILES.intern(new HPCapabilityProfile(this));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Objects;
+
+/**
+ *  Allocator of the cookies of the rules installed by the pipeline of a device.
+ *
+ *  In ONOS the cookie of a rule is its FlowId, and the application id is read from its
+ *  upper 16 bits. Cookies allocated here keep the application id and encode a marker,
+ *  the table and a hash of the rule:
+ *
+ *  <pre>
+ *  | appId (16) | marker (4) | table (4) | reserved (8) | hash (32) |
+ *  </pre>
+ *
+ *  The hash covers device, selector, priority and table, as the "natural" FlowId computed
+ *  by ONOS: the cookie of a rule is derived from its content only, so that a REMOVE addresses
+ *  the rule installed by the ADD even after a reconnection, a mastership change or a restart.
+ *  The objective and the prefix rule of a software rule are correlated to its cookie on the
+ *  side, with a primitive-keyed lookup, e.g. for flow stats, flow-removed events and errors;
+ *  losing them does not change the identity of the rules.
+ *
+ *  The allocator is not thread-safe: it is only used on the lane of its device.
+ */
+
+public final class HPCookieAllocator {
+
+    public static final int MARKER = 0xB;
+
+    private static final int APP_SHIFT = 48;
+    private static final int MARKER_SHIFT = 44;
+    private static final int TABLE_SHIFT = 40;
+    private static final long HASH_MASK = 0xFFFFFFFFL;
+
+    private static final int TABLE_ZERO_CODE = 0;
+    private static final int HARDWARE_TABLE_CODE = 1;
+    private static final int SOFTWARE_TABLE_CODE = 2;
+    private static final int OTHER_TABLE_CODE = 0xF;
+
+    /**
+     * Objective and prefix rule of a cookie.
+     */
+    private static final class Binding {
+        private int objectiveId;
+        private long prefixCookie;
+    }
+
+    private final HPLongMap<Binding> bindings = new HPLongMap<>();
+
+    /**
+     * Returns true if the cookie has been allocated by an HPCookieAllocator.
+     *
+     * @param cookie the cookie
+     * @return boolean
+     */
+    public static boolean isAllocated(long cookie) {
+        return ((cookie >>> MARKER_SHIFT) & 0xF) == MARKER;
+    }
+
+    /**
+     * Returns the table encoded in a cookie.
+     *
+     * @param cookie a cookie allocated by an HPCookieAllocator
+     * @return the table id, -1 if the table is not one of the HP pipeline
+     */
+    public static int tableOf(long cookie) {
+        switch ((int) (cookie >>> TABLE_SHIFT) & 0xF) {
+            case TABLE_ZERO_CODE:
+                return AbstractHPPipeline.HP_TABLE_ZERO;
+            case HARDWARE_TABLE_CODE:
+                return AbstractHPPipeline.HP_HARDWARE_TABLE;
+            case SOFTWARE_TABLE_CODE:
+                return AbstractHPPipeline.HP_SOFTWARE_TABLE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the cookie of a rule, derived from application, device, selector, priority and table.
+     *
+     * @param rule the rule
+     * @return the cookie
+     */
+    public static long cookieOf(FlowRule rule) {
+        int hash = Objects.hash(rule.deviceId(), rule.selector(), rule.tableId(), rule.priority());
+        return ((long) rule.appId() & 0xFFFF) << APP_SHIFT
+                | (long) MARKER << MARKER_SHIFT
+                | (long) tableCode(rule.tableId()) << TABLE_SHIFT
+                | hash & HASH_MASK;
+    }
+
+    /**
+     * Returns the rule with its cookie, starting the correlation of the cookie if needed.
+     *
+     * @param rule the rule, with its natural FlowId
+     * @return the rule with its cookie
+     */
+    public FlowRule assign(FlowRule rule) {
+        long cookie = cookieOf(rule);
+        if (bindings.get(cookie) == null) {
+            bindings.put(cookie, new Binding());
+        }
+        return withCookie(rule, cookie);
+    }
+
+    /**
+     * Returns the rule with its cookie and ends the correlation of the cookie, e.g. when the rule
+     * is being removed.
+     *
+     * @param rule the rule, with its natural FlowId
+     * @return the rule with its cookie
+     */
+    public FlowRule unassign(FlowRule rule) {
+        long cookie = cookieOf(rule);
+        bindings.remove(cookie);
+        return withCookie(rule, cookie);
+    }
+
+    /**
+     * Ends the correlation of a cookie, e.g. when its rule expired or failed to be installed.
+     *
+     * @param cookie the cookie
+     */
+    public void release(long cookie) {
+        bindings.remove(cookie);
+    }
+
+    /**
+     * Records the objective and the prefix rule of the rule with the given cookie.
+     *
+     * @param cookie the cookie of the rule
+     * @param objectiveId id of the objective of the rule
+     * @param prefix the prefix rule in the hardware table, null if none
+     */
+    public void bind(long cookie, int objectiveId, FlowRule prefix) {
+        Binding binding = bindings.get(cookie);
+        if (binding != null) {
+            binding.objectiveId = objectiveId;
+            binding.prefixCookie = prefix == null ? 0 : prefix.id().value();
+        }
+    }
+
+    /**
+     * Returns the id of the objective of the rule with the given cookie.
+     *
+     * @param cookie the cookie
+     * @return the objective id, 0 if unknown
+     */
+    public int objectiveOf(long cookie) {
+        Binding binding = bindings.get(cookie);
+        return binding == null ? 0 : binding.objectiveId;
+    }
+
+    /**
+     * Returns the cookie of the prefix rule of the software rule with the given cookie.
+     *
+     * @param cookie the cookie
+     * @return the cookie of the prefix rule, 0 if none or unknown
+     */
+    public long prefixOf(long cookie) {
+        Binding binding = bindings.get(cookie);
+        return binding == null ? 0 : binding.prefixCookie;
+    }
+
+    /**
+     * Forgets all the correlations, e.g. when the device disconnects.
+     */
+    public void clear() {
+        bindings.clear();
+    }
+
+    public int size() {
+        return bindings.size();
+    }
+
+    private static int tableCode(int tableId) {
+        switch (tableId) {
+            case AbstractHPPipeline.HP_TABLE_ZERO:
+                return TABLE_ZERO_CODE;
+            case AbstractHPPipeline.HP_HARDWARE_TABLE:
+                return HARDWARE_TABLE_CODE;
+            case AbstractHPPipeline.HP_SOFTWARE_TABLE:
+                return SOFTWARE_TABLE_CODE;
+            default:
+                return OTHER_TABLE_CODE;
+        }
+    }
+
+    // Copies a rule, replacing its FlowId with the cookie
+    private static FlowRule withCookie(FlowRule rule, long cookie) {
+        FlowRule.Builder builder = DefaultFlowRule.builder()
+                .forDevice(rule.deviceId())
+                .withSelector(rule.selector())
+                .withTreatment(rule.treatment())
+                .withPriority(rule.priority())
+                .withCookie(cookie)
+                .forTable(rule.tableId());
+        if (rule.isPermanent()) {
+            builder.makePermanent();
+        } else {
+            builder.makeTemporary(rule.timeout());
+        }
+        return builder.build();
+    }
+}
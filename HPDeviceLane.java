@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ *  Ordered execution lane of a device.
+ *
+ *  The driver owns a fixed pool of single-thread executors, one per available core, and a timer
+ *  for the delayed tasks, started and shut down by HPDriverLoader with the bundle. Each device
+ *  is bound to one of the executors by its id, so that all the Pipeliner calls, the listener
+ *  callbacks and the FlowRuleOperations callbacks of a device are executed one at a time and
+ *  in order, while different devices are processed in parallel.
+ *
+ *  Devices bound to the same executor share it: a task blocking on I/O delays the devices behind
+ *  it. The only blocking calls of the pipeline are the reads and removals of NextGroups in the
+ *  FlowObjectiveStore, on the nextId path, when the treatment of the next is neither decoded
+ *  nor pending; a slow store then stalls the other devices of the lane.
+ */
+
+public final class HPDeviceLane {
+
+    private static final int LANES = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static volatile ExecutorService[] executors;
+    private static volatile ScheduledExecutorService timer;
+
+    private final Logger log = getLogger(getClass());
+
+    /**
+     * Starts the executors of the lanes, if not started yet.
+     */
+    public static synchronized void start() {
+        if (executors != null) {
+            return;
+        }
+        Logger log = getLogger(HPDeviceLane.class);
+        ExecutorService[] lanes = new ExecutorService[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(groupedThreads("onos/drivers/hp", "lane-" + i, log));
+        }
+        executors = lanes;
+        timer = Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/drivers/hp", "lane-timer", log));
+    }
+
+    /**
+     * Shuts the executors of the lanes down. Tasks queued afterwards are dropped.
+     */
+    public static synchronized void stop() {
+        ExecutorService[] lanes = executors;
+        executors = null;
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (lanes != null) {
+            for (ExecutorService lane : lanes) {
+                lane.shutdownNow();
+            }
+        }
+    }
+
+    private final DeviceId deviceId;
+    private final int index;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Histogram depthHistogram;
+    private final Timer serviceTime;
+
+    /**
+     * Binds a device to its lane.
+     *
+     * @param deviceId the device
+     * @param metrics the metrics of the device
+     */
+    public HPDeviceLane(DeviceId deviceId, HPMetrics metrics) {
+        this.deviceId = deviceId;
+        this.index = Math.floorMod(deviceId.hashCode(), LANES);
+        this.depthHistogram = metrics.histogram("laneDepth");
+        this.serviceTime = metrics.timer("laneServiceTime");
+        metrics.gauge("laneQueued", depth::get);
+    }
+
+    /**
+     * Queues a task on the lane of the device.
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        ExecutorService[] lanes = executors;
+        if (lanes == null) {
+            log.warn("HP Driver - lanes stopped, dropping task of device {}", deviceId);
+            return;
+        }
+        depthHistogram.update(depth.incrementAndGet());
+        try {
+            lanes[index].execute(() -> run(task));
+        } catch (RejectedExecutionException e) {
+            depth.decrementAndGet();
+            log.warn("HP Driver - lanes stopped, dropping task of device {}", deviceId);
+        }
+    }
+
+    /**
+     * Queues a task on the lane of the device after a delay.
+     *
+     * @param task the task
+     * @param delay the delay
+     * @param unit unit of the delay
+     * @return the future of the delay, to cancel the task before it is queued; null if the lanes are stopped
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        ScheduledExecutorService scheduler = timer;
+        if (scheduler == null) {
+            log.warn("HP Driver - lanes stopped, dropping delayed task of device {}", deviceId);
+            return null;
+        }
+        try {
+            return scheduler.schedule(() -> execute(task), delay, unit);
+        } catch (RejectedExecutionException e) {
+            log.warn("HP Driver - lanes stopped, dropping delayed task of device {}", deviceId);
+            return null;
+        }
+    }
+
+    // Runs a task on the lane, measuring its service time
+    private void run(Runnable task) {
+        Timer.Context timer = serviceTime.time();
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.warn("HP Driver - Task failed on device {}", deviceId, e);
+        } finally {
+            timer.stop();
+            depth.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of tasks of the device waiting or running on the lane.
+     *
+     * @return number of tasks
+     */
+    public int depth() {
+        return depth.get();
+    }
+}
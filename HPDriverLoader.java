@@ -16,15 +16,71 @@
 
 package org.onosproject.drivers.hp;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractDriverLoader;
+import org.onosproject.openflow.controller.Dpid;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
 
 /**
  * Loader for HP drivers.
+ *
+ * Also starts and stops the lanes of the HP pipelines with the bundle, and releases the
+ * HPFeatures and the learned placements of the OpenFlow devices removed from the device store.
  */
 @Component(immediate = true)
 public class HPDriverLoader extends AbstractDriverLoader {
+
+    private final Logger log = getLogger(getClass());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected DeviceService deviceService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
     public HPDriverLoader() {
         super("/hp-driver.xml");
     }
+
+    @Activate
+    @Override
+    protected void activate() {
+        HPDeviceLane.start();
+        super.activate();
+        deviceService.addListener(deviceListener);
+    }
+
+    @Deactivate
+    @Override
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        super.deactivate();
+        HPDeviceLane.stop();
+    }
+
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED
+                    && "of".equals(event.subject().id().uri().getScheme());
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            DeviceId deviceId = event.subject().id();
+            HPFeatures.clearFeatures(Dpid.dpid(deviceId.uri()));
+            HPLearnedPlacements.remove(deviceId);
+            log.debug("HP Driver - device {} removed, features and learned placements released", deviceId);
+        }
+    }
 }
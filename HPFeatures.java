@@ -23,8 +23,14 @@ import org.onosproject.net.flow.instructions.L3ModificationInstruction;
 import org.onosproject.net.flow.instructions.L4ModificationInstruction;
 import org.onosproject.openflow.controller.Dpid;
 import org.projectfloodlight.openflow.protocol.OFActionType;
+import org.projectfloodlight.openflow.protocol.OFInstructionType;
 import org.projectfloodlight.openflow.protocol.OFTableFeatureProp;
+import org.projectfloodlight.openflow.protocol.OFTableFeaturePropInstructions;
+import org.projectfloodlight.openflow.protocol.OFTableFeaturePropInstructionsMiss;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturePropMatch;
+import org.projectfloodlight.openflow.protocol.OFTableFeaturePropNextTables;
+import org.projectfloodlight.openflow.protocol.OFTableFeaturePropNextTablesMiss;
+import org.projectfloodlight.openflow.protocol.OFTableFeaturePropWildcards;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturePropWriteActions;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturePropWriteActionsMiss;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturePropApplyActions;
@@ -35,16 +41,27 @@ import org.projectfloodlight.openflow.protocol.OFTableFeaturePropWriteSetfield;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturePropWriteSetfieldMiss;
 import org.projectfloodlight.openflow.protocol.OFTableFeatures;
 import org.projectfloodlight.openflow.protocol.actionid.OFActionId;
+import org.projectfloodlight.openflow.protocol.instructionid.OFInstructionId;
 import org.projectfloodlight.openflow.types.U32;
+import org.projectfloodlight.openflow.types.U8;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Set;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *  A data structure to hold lists of criteria and instructions, supported in hardware or
@@ -56,9 +73,10 @@ import java.util.List;
 public final class HPFeatures {
 
     /**
-     * The Map that associates every DPID with its respective HPFeatures object.
+     * The Map that associates every DPID, by its long value, with its respective HPFeatures object.
+     * Entries are removed by HPDriverLoader when the device is removed.
      */
-    private static Map<String, HPFeatures> instances = new HashMap<>();
+    private static final HPLongMap<HPFeatures> INSTANCES = new HPLongMap<>();
     /**
      * Unique identifier for the HPFeatures object.
      */
@@ -91,116 +109,119 @@ public final class HPFeatures {
      */
     public static class ExtractTypes {
 
+        private static final Logger LOG = LoggerFactory.getLogger(ExtractTypes.class);
+
+        // OXM header: class (16 bits) | field (7 bits) | hasmask (1 bit) | length (8 bits)
+        private static final int OXM_CLASS_SHIFT = 16;
+        private static final int OXM_FIELD_SHIFT = 9;
+        private static final int OXM_FIELD_MASK = 0x7F;
+        private static final int OXM_HASMASK = 1 << 8;
+
+        private static final int OXM_CLASS_NXM_0 = 0x0000;
+        private static final int OXM_CLASS_NXM_1 = 0x0001;
+        private static final int OXM_CLASS_OPENFLOW_BASIC = 0x8000;
+        private static final int OXM_CLASS_EXPERIMENTER = 0xFFFF;
+
+        // Criteria indexed by the field of the OPENFLOW_BASIC class, OpenFlow 1.3 section 7.2.3.7
+        private static final Criterion.Type[] OPENFLOW_BASIC = {
+                Criterion.Type.IN_PORT, Criterion.Type.IN_PHY_PORT, Criterion.Type.METADATA,
+                Criterion.Type.ETH_DST, Criterion.Type.ETH_SRC, Criterion.Type.ETH_TYPE,
+                Criterion.Type.VLAN_VID, Criterion.Type.VLAN_PCP, Criterion.Type.IP_DSCP,
+                Criterion.Type.IP_ECN, Criterion.Type.IP_PROTO, Criterion.Type.IPV4_SRC,
+                Criterion.Type.IPV4_DST, Criterion.Type.TCP_SRC, Criterion.Type.TCP_DST,
+                Criterion.Type.UDP_SRC, Criterion.Type.UDP_DST, Criterion.Type.SCTP_SRC,
+                Criterion.Type.SCTP_DST, Criterion.Type.ICMPV4_TYPE, Criterion.Type.ICMPV4_CODE,
+                Criterion.Type.ARP_OP, Criterion.Type.ARP_SPA, Criterion.Type.ARP_TPA,
+                Criterion.Type.ARP_SHA, Criterion.Type.ARP_THA, Criterion.Type.IPV6_SRC,
+                Criterion.Type.IPV6_DST, Criterion.Type.IPV6_FLABEL, Criterion.Type.ICMPV6_TYPE,
+                Criterion.Type.ICMPV6_CODE, Criterion.Type.IPV6_ND_TARGET, Criterion.Type.IPV6_ND_SLL,
+                Criterion.Type.IPV6_ND_TLL, Criterion.Type.MPLS_LABEL, Criterion.Type.MPLS_TC,
+                Criterion.Type.MPLS_BOS, Criterion.Type.PBB_ISID, Criterion.Type.TUNNEL_ID,
+                Criterion.Type.IPV6_EXTHDR
+        };
+
+        // Criteria indexed by the field of the NXM_0 class, only the fields with the same
+        // semantics of an ONOS criterion. NXM_OF_VLAN_TCI and NXM_OF_IP_TOS are not mapped.
+        private static final Criterion.Type[] NXM_0 = {
+                Criterion.Type.IN_PORT, Criterion.Type.ETH_DST, Criterion.Type.ETH_SRC,
+                Criterion.Type.ETH_TYPE, null, null,
+                Criterion.Type.IP_PROTO, Criterion.Type.IPV4_SRC, Criterion.Type.IPV4_DST,
+                Criterion.Type.TCP_SRC, Criterion.Type.TCP_DST, Criterion.Type.UDP_SRC,
+                Criterion.Type.UDP_DST, Criterion.Type.ICMPV4_TYPE, Criterion.Type.ICMPV4_CODE,
+                Criterion.Type.ARP_OP, Criterion.Type.ARP_SPA, Criterion.Type.ARP_TPA
+        };
+
+        // Masked variants of the criteria, for the OXM ids with the hasmask bit set
+        private static final Map<Criterion.Type, Criterion.Type> MASKED = new EnumMap<>(Criterion.Type.class);
+
+        static {
+            MASKED.put(Criterion.Type.ETH_DST, Criterion.Type.ETH_DST_MASKED);
+            MASKED.put(Criterion.Type.ETH_SRC, Criterion.Type.ETH_SRC_MASKED);
+            MASKED.put(Criterion.Type.TCP_SRC, Criterion.Type.TCP_SRC_MASKED);
+            MASKED.put(Criterion.Type.TCP_DST, Criterion.Type.TCP_DST_MASKED);
+            MASKED.put(Criterion.Type.UDP_SRC, Criterion.Type.UDP_SRC_MASKED);
+            MASKED.put(Criterion.Type.UDP_DST, Criterion.Type.UDP_DST_MASKED);
+            MASKED.put(Criterion.Type.SCTP_SRC, Criterion.Type.SCTP_SRC_MASKED);
+            MASKED.put(Criterion.Type.SCTP_DST, Criterion.Type.SCTP_DST_MASKED);
+        }
+
         /**
          * Converts an OXM header (expressed as a 32-bit unsigned integer) to
          * an ONOS Criterion.
          *
+         * Fields of the OPENFLOW_BASIC and NXM_0 classes are decoded, the ones of the
+         * NXM_1 and EXPERIMENTER classes have no ONOS criterion and return null.
+         * An EXPERIMENTER header is followed by the experimenter id, that callers walking a
+         * list of OXM ids must skip, see isExperimenter.
+         *
          * @param header OXM header (in 32-bit unsigned integer format)
-         * @return the corresponding Criterion Type.
+         * @return the corresponding Criterion Type, null if unknown
          */
         public static Criterion.Type getCriterion(int header) {
-            Logger log = LoggerFactory.getLogger("ExtractTypes");
-            // Converts the header to a binary string always padded to 32 bits.
-            String binString = String.format("%32s", Integer.toBinaryString(header)).replace(' ', '0');
-
-            int classType = Integer.parseInt(binString.substring(0, 16), 2);
-            if (classType == 65535) {
-                log.warn("Header is {}, cannot interpret class {}", binString, binString.substring(0, 16));
-                return null;
-            }
+            int oxmClass = header >>> OXM_CLASS_SHIFT;
+            int field = (header >>> OXM_FIELD_SHIFT) & OXM_FIELD_MASK;
 
-            int index = Integer.parseInt(binString.substring(16, 23), 2);
-            if (classType == 0 || classType == 1) {
-                log.info("-------- NXM MESSAGE RECEIVED, IS {}", index);
-            }
-
-            switch (index) {
-                case 0:
-                    return Criterion.Type.IN_PORT;
-                case 1:
-                    return Criterion.Type.IN_PHY_PORT;
-                case 2:
-                    return Criterion.Type.METADATA;
-                case 3:
-                    return Criterion.Type.ETH_DST;
-                case 4:
-                    return Criterion.Type.ETH_SRC;
-                case 5:
-                    return Criterion.Type.ETH_TYPE;
-                case 6:
-                    return Criterion.Type.VLAN_VID;
-                case 7:
-                    return Criterion.Type.VLAN_PCP;
-                case 8:
-                    return Criterion.Type.IP_DSCP;
-                case 9:
-                    return Criterion.Type.IP_ECN;
-                case 10:
-                    return Criterion.Type.IP_PROTO;
-                case 11:
-                    return Criterion.Type.IPV4_SRC;
-                case 12:
-                    return Criterion.Type.IPV4_DST;
-                case 13:
-                    return Criterion.Type.TCP_SRC;
-                case 14:
-                    return Criterion.Type.TCP_DST;
-                case 15:
-                    return Criterion.Type.UDP_SRC;
-                case 16:
-                    return Criterion.Type.UDP_DST;
-                case 17:
-                    return Criterion.Type.SCTP_SRC;
-                case 18:
-                    return Criterion.Type.SCTP_DST;
-                case 19:
-                    return Criterion.Type.ICMPV4_TYPE;
-                case 20:
-                    return Criterion.Type.ICMPV4_CODE;
-                case 21:
-                    return Criterion.Type.ARP_OP;
-                case 22:
-                    return Criterion.Type.ARP_SPA;
-                case 23:
-                    return Criterion.Type.ARP_TPA;
-                case 24:
-                    return Criterion.Type.ARP_SHA;
-                case 25:
-                    return Criterion.Type.ARP_THA;
-                case 26:
-                    return Criterion.Type.IPV6_SRC;
-                case 27:
-                    return Criterion.Type.IPV6_DST;
-                case 28:
-                    return Criterion.Type.IPV6_FLABEL;
-                case 29:
-                    return Criterion.Type.ICMPV6_TYPE;
-                case 30:
-                    return Criterion.Type.ICMPV6_CODE;
-                case 31:
-                    return Criterion.Type.IPV6_ND_TARGET;
-                case 32:
-                    return Criterion.Type.IPV6_ND_SLL;
-                case 33:
-                    return Criterion.Type.IPV6_ND_TLL;
-                case 34:
-                    return Criterion.Type.MPLS_LABEL;
-                case 35:
-                    return Criterion.Type.MPLS_TC;
-                case 36:
-                    return Criterion.Type.MPLS_BOS;
-                case 37:
-                    return Criterion.Type.PBB_ISID;
-                case 38:
-                    return Criterion.Type.TUNNEL_ID;
-                case 39:
-                    return Criterion.Type.IPV6_EXTHDR;
+            Criterion.Type[] fields;
+            switch (oxmClass) {
+                case OXM_CLASS_OPENFLOW_BASIC:
+                    fields = OPENFLOW_BASIC;
+                    break;
+                case OXM_CLASS_NXM_0:
+                    fields = NXM_0;
+                    break;
+                case OXM_CLASS_NXM_1:
+                case OXM_CLASS_EXPERIMENTER:
+                    LOG.debug("Ignoring OXM header {}, class {}", Integer.toHexString(header),
+                              Integer.toHexString(oxmClass));
+                    return null;
                 default:
-                    log.warn("Header is {}, cannot interpret criteria with substring {}, index {}",
-                            binString, binString.substring(16, 23), index);
+                    LOG.warn("Header is {}, cannot interpret class {}", Integer.toHexString(header),
+                             Integer.toHexString(oxmClass));
                     return null;
             }
 
+            Criterion.Type type = field < fields.length ? fields[field] : null;
+            if (type == null) {
+                LOG.warn("Header is {}, cannot interpret criteria of class {}, field {}",
+                         Integer.toHexString(header), Integer.toHexString(oxmClass), field);
+            }
+            return type;
+        }
+
+        /**
+         * Returns true if the OXM header is of the EXPERIMENTER class: the OXM id is 8 bytes long,
+         * and the next 32-bit word of the list is the experimenter id, not a header.
+         *
+         * @param header OXM header (in 32-bit unsigned integer format)
+         * @return boolean
+         */
+        public static boolean isExperimenter(int header) {
+            return header >>> OXM_CLASS_SHIFT == OXM_CLASS_EXPERIMENTER;
+        }
+
+        // Masked variant of the criterion already decoded from the header
+        private static Criterion.Type masked(int header, Criterion.Type type) {
+            return (header & OXM_HASMASK) == 0 ? null : MASKED.get(type);
         }
 
         /**
@@ -209,21 +230,8 @@ public final class HPFeatures {
          * @return an Instruction.Type object that represent the same action as the OFActionType.
          */
         public static Instruction.Type getInstruction(OFActionType t) {
-
-            switch (t) {
-                case GROUP:
-                    return Instruction.Type.GROUP;
-                case METER:
-                    return Instruction.Type.METER;
-                case OUTPUT:
-                    return Instruction.Type.OUTPUT;
-                case ENQUEUE:
-                    return Instruction.Type.QUEUE;
-                case EXPERIMENTER:
-                    return Instruction.Type.EXTENSION;
-                default:
-                    return null;
-            }
+            Capability capability = ACTIONS.get(t);
+            return capability == null || capability.hasSubtype() ? null : capability.instruction;
         }
 
         /**
@@ -234,30 +242,8 @@ public final class HPFeatures {
          * @return an L2ModificationInstruction.L2SubType object that represent the same action as the OFActionType.
          */
         public static L2ModificationInstruction.L2SubType getL2Subtype(OFActionType t) {
-            switch (t) {
-                case SET_VLAN_PCP:
-                    return L2ModificationInstruction.L2SubType.VLAN_PCP;
-                case DEC_MPLS_TTL:
-                    return L2ModificationInstruction.L2SubType.DEC_MPLS_TTL;
-                case POP_MPLS:
-                    return L2ModificationInstruction.L2SubType.MPLS_POP;
-                case POP_VLAN:
-                    return L2ModificationInstruction.L2SubType.VLAN_POP;
-                case PUSH_MPLS:
-                    return L2ModificationInstruction.L2SubType.MPLS_PUSH;
-                case PUSH_VLAN:
-                    return L2ModificationInstruction.L2SubType.VLAN_PUSH;
-                case SET_DL_DST:
-                    return L2ModificationInstruction.L2SubType.ETH_DST;
-                case SET_DL_SRC:
-                    return L2ModificationInstruction.L2SubType.ETH_SRC;
-                case SET_MPLS_LABEL:
-                    return L2ModificationInstruction.L2SubType.MPLS_LABEL;
-                case SET_VLAN_VID:
-                    return L2ModificationInstruction.L2SubType.VLAN_ID;
-                default:
-                    return null;
-            }
+            Capability capability = ACTIONS.get(t);
+            return capability == null ? null : capability.l2;
         }
 
         /**
@@ -268,20 +254,8 @@ public final class HPFeatures {
          * @return an L3ModificationInstruction.L3SubType object that represent the same action as the OFActionType.
          */
         public static L3ModificationInstruction.L3SubType getL3Subtype(OFActionType t) {
-            switch (t) {
-                case COPY_TTL_IN:
-                    return L3ModificationInstruction.L3SubType.TTL_IN;
-                case COPY_TTL_OUT:
-                    return L3ModificationInstruction.L3SubType.TTL_OUT;
-                case DEC_NW_TTL:
-                    return L3ModificationInstruction.L3SubType.DEC_TTL;
-                case SET_NW_DST:
-                    return L3ModificationInstruction.L3SubType.IPV4_DST;
-                case SET_NW_SRC:
-                    return L3ModificationInstruction.L3SubType.IPV4_SRC;
-                default:
-                    return null;
-            }
+            Capability capability = ACTIONS.get(t);
+            return capability == null ? null : capability.l3;
         }
 
         /**
@@ -292,52 +266,182 @@ public final class HPFeatures {
          * @return an L4ModificationInstruction.L4SubType object that represent the same action as the OFActionType.
          */
         public static L4ModificationInstruction.L4SubType getL4Subtype(OFActionType t) {
-            switch (t) {
-                case SET_TP_SRC:
-                    return L4ModificationInstruction.L4SubType.TCP_SRC;
-                case SET_TP_DST:
-                    return L4ModificationInstruction.L4SubType.TCP_DST;
-                default:
-                    return null;
+            Capability capability = ACTIONS.get(t);
+            return capability == null ? null : capability.l4;
+        }
+
+    }
+
+    /**
+     * An ONOS instruction, with its modification subtype if any, that a switch action
+     * or set-field maps to.
+     */
+    private static final class Capability {
+        private final Instruction.Type instruction;
+        private final L2ModificationInstruction.L2SubType l2;
+        private final L3ModificationInstruction.L3SubType l3;
+        private final L4ModificationInstruction.L4SubType l4;
+
+        private Capability(Instruction.Type instruction, L2ModificationInstruction.L2SubType l2,
+                           L3ModificationInstruction.L3SubType l3, L4ModificationInstruction.L4SubType l4) {
+            this.instruction = instruction;
+            this.l2 = l2;
+            this.l3 = l3;
+            this.l4 = l4;
+        }
+
+        private static Capability of(Instruction.Type instruction) {
+            return new Capability(instruction, null, null, null);
+        }
+
+        private static Capability of(L2ModificationInstruction.L2SubType l2) {
+            return new Capability(Instruction.Type.L2MODIFICATION, l2, null, null);
+        }
+
+        private static Capability of(L3ModificationInstruction.L3SubType l3) {
+            return new Capability(Instruction.Type.L3MODIFICATION, null, l3, null);
+        }
+
+        private static Capability of(L4ModificationInstruction.L4SubType l4) {
+            return new Capability(Instruction.Type.L4MODIFICATION, null, null, l4);
+        }
+
+        private boolean hasSubtype() {
+            return l2 != null || l3 != null || l4 != null;
+        }
+
+        // Marks the capability as supported, and as supported in hardware if requested
+        private void addTo(HPCapabilityProfile.Builder b, boolean isHardware) {
+            b.unsupportedInstructions().remove(instruction);
+            if (l2 != null) {
+                b.unsupportedL2mod().remove(l2);
+            } else if (l3 != null) {
+                b.unsupportedL3mod().remove(l3);
+            } else if (l4 != null) {
+                b.unsupportedL4mod().remove(l4);
+            }
+            if (!isHardware) {
+                return;
+            }
+            b.hardwareInstructions().add(instruction);
+            if (l2 != null) {
+                b.hardwareL2mod().add(l2);
+            } else if (l3 != null) {
+                b.hardwareL3mod().add(l3);
+            } else if (l4 != null) {
+                b.hardwareL4mod().add(l4);
             }
         }
+    }
 
+    // Capabilities of the OpenFlow actions listed by the *_ACTIONS properties
+    private static final Map<OFActionType, Capability> ACTIONS = new EnumMap<>(OFActionType.class);
+
+    // Capabilities of the OXM fields listed by the *_SETFIELD properties
+    private static final Map<Criterion.Type, Capability> SET_FIELDS = new EnumMap<>(Criterion.Type.class);
+
+    static {
+        ACTIONS.put(OFActionType.GROUP, Capability.of(Instruction.Type.GROUP));
+        ACTIONS.put(OFActionType.METER, Capability.of(Instruction.Type.METER));
+        ACTIONS.put(OFActionType.OUTPUT, Capability.of(Instruction.Type.OUTPUT));
+        ACTIONS.put(OFActionType.ENQUEUE, Capability.of(Instruction.Type.QUEUE));
+        ACTIONS.put(OFActionType.EXPERIMENTER, Capability.of(Instruction.Type.EXTENSION));
+        ACTIONS.put(OFActionType.SET_VLAN_PCP, Capability.of(L2ModificationInstruction.L2SubType.VLAN_PCP));
+        ACTIONS.put(OFActionType.DEC_MPLS_TTL, Capability.of(L2ModificationInstruction.L2SubType.DEC_MPLS_TTL));
+        ACTIONS.put(OFActionType.POP_MPLS, Capability.of(L2ModificationInstruction.L2SubType.MPLS_POP));
+        ACTIONS.put(OFActionType.POP_VLAN, Capability.of(L2ModificationInstruction.L2SubType.VLAN_POP));
+        ACTIONS.put(OFActionType.PUSH_MPLS, Capability.of(L2ModificationInstruction.L2SubType.MPLS_PUSH));
+        ACTIONS.put(OFActionType.PUSH_VLAN, Capability.of(L2ModificationInstruction.L2SubType.VLAN_PUSH));
+        ACTIONS.put(OFActionType.SET_DL_DST, Capability.of(L2ModificationInstruction.L2SubType.ETH_DST));
+        ACTIONS.put(OFActionType.SET_DL_SRC, Capability.of(L2ModificationInstruction.L2SubType.ETH_SRC));
+        ACTIONS.put(OFActionType.SET_MPLS_LABEL, Capability.of(L2ModificationInstruction.L2SubType.MPLS_LABEL));
+        ACTIONS.put(OFActionType.SET_VLAN_VID, Capability.of(L2ModificationInstruction.L2SubType.VLAN_ID));
+        ACTIONS.put(OFActionType.COPY_TTL_IN, Capability.of(L3ModificationInstruction.L3SubType.TTL_IN));
+        ACTIONS.put(OFActionType.COPY_TTL_OUT, Capability.of(L3ModificationInstruction.L3SubType.TTL_OUT));
+        ACTIONS.put(OFActionType.DEC_NW_TTL, Capability.of(L3ModificationInstruction.L3SubType.DEC_TTL));
+        ACTIONS.put(OFActionType.SET_NW_DST, Capability.of(L3ModificationInstruction.L3SubType.IPV4_DST));
+        ACTIONS.put(OFActionType.SET_NW_SRC, Capability.of(L3ModificationInstruction.L3SubType.IPV4_SRC));
+        ACTIONS.put(OFActionType.SET_TP_SRC, Capability.of(L4ModificationInstruction.L4SubType.TCP_SRC));
+        ACTIONS.put(OFActionType.SET_TP_DST, Capability.of(L4ModificationInstruction.L4SubType.TCP_DST));
+
+        SET_FIELDS.put(Criterion.Type.ARP_OP, Capability.of(L3ModificationInstruction.L3SubType.ARP_OP));
+        SET_FIELDS.put(Criterion.Type.ARP_SHA, Capability.of(L3ModificationInstruction.L3SubType.ARP_SHA));
+        SET_FIELDS.put(Criterion.Type.ARP_SPA, Capability.of(L3ModificationInstruction.L3SubType.ARP_SPA));
+        SET_FIELDS.put(Criterion.Type.ETH_SRC, Capability.of(L2ModificationInstruction.L2SubType.ETH_SRC));
+        SET_FIELDS.put(Criterion.Type.ETH_DST, Capability.of(L2ModificationInstruction.L2SubType.ETH_DST));
+        SET_FIELDS.put(Criterion.Type.IPV4_DST, Capability.of(L3ModificationInstruction.L3SubType.IPV4_DST));
+        SET_FIELDS.put(Criterion.Type.IPV4_SRC, Capability.of(L3ModificationInstruction.L3SubType.IPV4_SRC));
+        SET_FIELDS.put(Criterion.Type.IPV6_DST, Capability.of(L3ModificationInstruction.L3SubType.IPV6_DST));
+        SET_FIELDS.put(Criterion.Type.IPV6_FLABEL, Capability.of(L3ModificationInstruction.L3SubType.IPV6_FLABEL));
+        SET_FIELDS.put(Criterion.Type.IPV6_SRC, Capability.of(L3ModificationInstruction.L3SubType.IPV6_SRC));
+        SET_FIELDS.put(Criterion.Type.METADATA, Capability.of(Instruction.Type.METADATA));
+        SET_FIELDS.put(Criterion.Type.EXTENSION, Capability.of(Instruction.Type.EXTENSION));
+        SET_FIELDS.put(Criterion.Type.MPLS_BOS, Capability.of(L2ModificationInstruction.L2SubType.MPLS_BOS));
+        SET_FIELDS.put(Criterion.Type.MPLS_LABEL, Capability.of(L2ModificationInstruction.L2SubType.MPLS_LABEL));
+        SET_FIELDS.put(Criterion.Type.ODU_SIGID, Capability.of(Instruction.Type.L1MODIFICATION));
+        SET_FIELDS.put(Criterion.Type.PROTOCOL_INDEPENDENT, Capability.of(Instruction.Type.PROTOCOL_INDEPENDENT));
+        SET_FIELDS.put(Criterion.Type.TCP_DST, Capability.of(L4ModificationInstruction.L4SubType.TCP_DST));
+        SET_FIELDS.put(Criterion.Type.TCP_SRC, Capability.of(L4ModificationInstruction.L4SubType.TCP_SRC));
+        SET_FIELDS.put(Criterion.Type.TUNNEL_ID, Capability.of(L2ModificationInstruction.L2SubType.TUNNEL_ID));
+        SET_FIELDS.put(Criterion.Type.UDP_DST, Capability.of(L4ModificationInstruction.L4SubType.UDP_DST));
+        SET_FIELDS.put(Criterion.Type.UDP_SRC, Capability.of(L4ModificationInstruction.L4SubType.UDP_SRC));
+        SET_FIELDS.put(Criterion.Type.VLAN_PCP, Capability.of(L2ModificationInstruction.L2SubType.VLAN_PCP));
+        SET_FIELDS.put(Criterion.Type.VLAN_VID, Capability.of(L2ModificationInstruction.L2SubType.VLAN_ID));
     }
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    // FNV-1a parameters of schema() and fingerprint()
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Enum types whose ordinals are used in the binary form
+    private static final List<Class<? extends Enum<?>>> SCHEMA_TYPES = Arrays.asList(
+            Criterion.Type.class, Instruction.Type.class, L2ModificationInstruction.L2SubType.class,
+            L3ModificationInstruction.L3SubType.class, L4ModificationInstruction.L4SubType.class,
+            OFInstructionType.class, OFActionType.class, HPTableModel.ActionProperty.class,
+            HPTableModel.FieldProperty.class);
+
+    // Types of the sets returned by HPCapabilityProfile.sets(), in the same order
+    private static final List<Class<? extends Enum<?>>> SET_TYPES = Arrays.asList(
+            Criterion.Type.class, Instruction.Type.class, L2ModificationInstruction.L2SubType.class,
+            L3ModificationInstruction.L3SubType.class, L4ModificationInstruction.L4SubType.class,
+            Criterion.Type.class, Instruction.Type.class, L2ModificationInstruction.L2SubType.class,
+            L3ModificationInstruction.L3SubType.class, L4ModificationInstruction.L4SubType.class);
+
+    // Table ids are encoded as a 256-bit mask
+    private static final int TABLE_ID_WORDS = 256 / Long.SIZE;
+    private static final int TABLE_SIZE = tableSize();
+
     private boolean automaticSetup = false;
 
-    private Set<Criterion.Type> unsupportedCriteria = new HashSet<>();
-    private Set<Instruction.Type> unsupportedInstructions = new HashSet<>();
-    private Set<L2ModificationInstruction.L2SubType> unsupportedL2mod = new HashSet<>();
-    private Set<L3ModificationInstruction.L3SubType> unsupportedL3mod = new HashSet<>();
-    private Set<L4ModificationInstruction.L4SubType> unsupportedL4mod = new HashSet<>();
+    /**
+     * Incremented at every change of the features, so that users of the lists can detect stale data.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    // max_entries of HP_HARDWARE_TABLE, 0 if unknown
+    private volatile long hardwareTableMaxEntries;
 
-    private Set<Criterion.Type> hardwareCriteria = new HashSet<>();
-    private Set<Instruction.Type> hardwareInstructions = new HashSet<>();
-    private Set<L2ModificationInstruction.L2SubType> hardwareInstructionsL2mod = new HashSet<>();
-    private Set<L3ModificationInstruction.L3SubType> hardwareInstructionsL3mod = new HashSet<>();
-    private Set<L4ModificationInstruction.L4SubType> hardwareInstructionsL4mod = new HashSet<>();
+    // Capabilities shared with the switches of the same model and firmware, replaced on every change
+    private volatile HPCapabilityProfile profile;
+
+    // Capabilities being extracted from TABLE_FEATURES, published at the end of the extraction
+    private HPCapabilityProfile.Builder pending;
+
+    // Models of the tables reported by TABLE_FEATURES, by table id
+    private volatile Map<Integer, HPTableModel> tables = Collections.emptyMap();
 
     // Private constructor when no "manual" configuration is given. It assumes that every
     // criterion and instruction is unsupported.
     private HPFeatures() {
-        for (Criterion.Type criterion : Criterion.Type.values()) {
-            unsupportedCriteria.add(criterion);
-        }
-        for (Instruction.Type instruction : Instruction.Type.values()) {
-            unsupportedInstructions.add(instruction);
-        }
-        for (L2ModificationInstruction.L2SubType l2SubType : L2ModificationInstruction.L2SubType.values()) {
-            unsupportedL2mod.add(l2SubType);
-        }
-        for (L3ModificationInstruction.L3SubType l3SubType : L3ModificationInstruction.L3SubType.values()) {
-            unsupportedL3mod.add(l3SubType);
-        }
-        for (L4ModificationInstruction.L4SubType l4SubType : L4ModificationInstruction.L4SubType.values()) {
-            unsupportedL4mod.add(l4SubType);
-        }
+        HPCapabilityProfile.Builder builder = HPCapabilityProfile.builder();
+        builder.unsupportedCriteria().addAll(EnumSet.allOf(Criterion.Type.class));
+        builder.unsupportedInstructions().addAll(EnumSet.allOf(Instruction.Type.class));
+        builder.unsupportedL2mod().addAll(EnumSet.allOf(L2ModificationInstruction.L2SubType.class));
+        builder.unsupportedL3mod().addAll(EnumSet.allOf(L3ModificationInstruction.L3SubType.class));
+        builder.unsupportedL4mod().addAll(EnumSet.allOf(L4ModificationInstruction.L4SubType.class));
+        profile = builder.build();
     }
 
     // Private constructor when a "manual" configuration is given.
@@ -346,11 +450,13 @@ public final class HPFeatures {
                        Set<L2ModificationInstruction.L2SubType> l2mod,
                        Set<L3ModificationInstruction.L3SubType> l3mod,
                        Set<L4ModificationInstruction.L4SubType> l4mod) {
-        unsupportedCriteria.addAll(criteria);
-        unsupportedInstructions.addAll(instructions);
-        unsupportedL2mod.addAll(l2mod);
-        unsupportedL3mod.addAll(l3mod);
-        unsupportedL4mod.addAll(l4mod);
+        HPCapabilityProfile.Builder builder = HPCapabilityProfile.builder();
+        builder.unsupportedCriteria().addAll(criteria);
+        builder.unsupportedInstructions().addAll(instructions);
+        builder.unsupportedL2mod().addAll(l2mod);
+        builder.unsupportedL3mod().addAll(l3mod);
+        builder.unsupportedL4mod().addAll(l4mod);
+        profile = builder.build();
     }
 
     /**
@@ -364,13 +470,7 @@ public final class HPFeatures {
      * @return The HPFeature object for that switch
      */
     public static HPFeatures getInstance(Dpid id) {
-        String name = id.toString();
-        HPFeatures ret = instances.get(name);
-        if (ret == null) {
-            ret = new HPFeatures();
-            instances.put(name, ret);
-        }
-        return ret;
+        return INSTANCES.computeIfAbsent(id.value(), k -> new HPFeatures());
     }
 
     /**
@@ -394,13 +494,8 @@ public final class HPFeatures {
                                          Set<L2ModificationInstruction.L2SubType> l2mod,
                                          Set<L3ModificationInstruction.L3SubType> l3mod,
                                          Set<L4ModificationInstruction.L4SubType> l4mod) {
-        String name = id.toString();
-        HPFeatures ret = instances.get(name);
-        if (ret == null) {
-            ret = new HPFeatures(criteria, instructions, l2mod, l3mod, l4mod);
-            instances.put(name, ret);
-        }
-        return ret;
+        return INSTANCES.computeIfAbsent(id.value(),
+                                         k -> new HPFeatures(criteria, instructions, l2mod, l3mod, l4mod));
     }
 
     /**
@@ -408,321 +503,150 @@ public final class HPFeatures {
      * @param id The DPID of the switch
      */
     public static void clearFeatures(Dpid id) {
-        String name = id.toString();
-        instances.remove(name);
-    }
-
-    // Extracts the correct sub-type of ONOS instruction (Instruction, LXModificationInstruction) starting
-    // from an OFActionId object, and optionally adding it to the set of instructions supported in hardware
-    private void extractActions(OFActionId id, boolean isHardware) {
-        OFActionType t = id.getType();
-        Instruction.Type instruction = HPFeatures.ExtractTypes.getInstruction(t);
-        if (instruction == null) {
-            L2ModificationInstruction.L2SubType l2 = HPFeatures.ExtractTypes.getL2Subtype(t);
-            if (l2 == null) {
-                L3ModificationInstruction.L3SubType l3 = HPFeatures.ExtractTypes.getL3Subtype(t);
-                if (l3 == null) {
-                    L4ModificationInstruction.L4SubType l4 = HPFeatures.ExtractTypes.getL4Subtype(t);
-                    if (l4 == null) {
-                        log.warn("OF Action Type {} not supported", t);
-                    } else {
-                        if (isHardware) {
-                            addHardwareInstruction(Instruction.Type.L4MODIFICATION);
-                            addHardwareL4Mod(l4);
-                        }
-                        addSupportedInstruction(Instruction.Type.L4MODIFICATION);
-                        addL4Mod(l4);
-                    }
-                } else {
-                    if (isHardware) {
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                        addHardwareL3Mod(l3);
-                    }
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(l3);
-                }
-            } else {
-                if (isHardware) {
-                    addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    addHardwareL2Mod(l2);
-                }
-                addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                addL2Mod(l2);
-            }
-        } else {
-            if (isHardware) {
-                addHardwareInstruction(instruction);
-            }
-            addSupportedInstruction(instruction);
-        }
+        INSTANCES.remove(id.value());
     }
 
-    // Reads features for a single table
-    private void extractCriteriaForTable(List<OFTableFeatureProp> featurePropList, boolean isHardware) {
-
-        for (OFTableFeatureProp featureProp: featurePropList) {
+    // Parses the properties of a table in one pass: every property is recorded in the model of the
+    // table, and the criteria, actions and set-fields it lists are marked as supported
+    private void extractTable(OFTableFeatures tableFeatures, HPTableModel.Builder model, boolean isHardware) {
+        for (OFTableFeatureProp featureProp : tableFeatures.getProperties()) {
             switch (featureProp.getType()) {
-                case FeatureType.MATCH:
-                    OFTableFeaturePropMatch propMatch = (OFTableFeaturePropMatch) featureProp;
-                    checkOxms(isHardware, propMatch.getOxmIds());
+                case FeatureType.INSTRUCTIONS:
+                    for (OFInstructionId id : ((OFTableFeaturePropInstructions) featureProp).getInstructionIds()) {
+                        model.instruction(id.getType(), false);
+                    }
                     break;
-                case FeatureType.WRITE_ACTIONS:
-                    OFTableFeaturePropWriteActions writeActions = (OFTableFeaturePropWriteActions) featureProp;
-                    for (OFActionId id: writeActions.getActionIds()) {
-                        extractActions(id, isHardware);
+                case FeatureType.INSTRUCTIONS_MISS:
+                    for (OFInstructionId id :
+                            ((OFTableFeaturePropInstructionsMiss) featureProp).getInstructionIds()) {
+                        model.instruction(id.getType(), true);
                     }
                     break;
-                case FeatureType.APPLY_ACTIONS:
-                    OFTableFeaturePropApplyActions applyActions = (OFTableFeaturePropApplyActions) featureProp;
-                    for (OFActionId id: applyActions.getActionIds()) {
-                        extractActions(id, isHardware);
+                case FeatureType.NEXT_TABLES:
+                    for (U8 table : ((OFTableFeaturePropNextTables) featureProp).getNextTableIds()) {
+                        model.nextTable(table.getValue(), false);
                     }
                     break;
-                case FeatureType.WRITE_ACTIONS_MISS:
-                    OFTableFeaturePropWriteActionsMiss writeActionsMiss =
-                            (OFTableFeaturePropWriteActionsMiss) featureProp;
-                    for (OFActionId id: writeActionsMiss.getActionIds()) {
-                        extractActions(id, isHardware);
+                case FeatureType.NEXT_TABLES_MISS:
+                    for (U8 table : ((OFTableFeaturePropNextTablesMiss) featureProp).getNextTableIds()) {
+                        model.nextTable(table.getValue(), true);
                     }
                     break;
-                case FeatureType.APPLY_ACTIONS_MISS:
-                    OFTableFeaturePropApplyActionsMiss applyActionsMiss =
-                            (OFTableFeaturePropApplyActionsMiss) featureProp;
-                    for (OFActionId id: applyActionsMiss.getActionIds()) {
-                        extractActions(id, isHardware);
+                case FeatureType.MATCH:
+                    checkOxms(model, ((OFTableFeaturePropMatch) featureProp).getOxmIds(), isHardware);
+                    break;
+                case FeatureType.WILDCARDS:
+                    // Wildcarded fields are recorded, they do not make a criterion supported
+                    for (U32 oxm : ((OFTableFeaturePropWildcards) featureProp).getOxmIds()) {
+                        Criterion.Type type = ExtractTypes.getCriterion(oxm.getRaw());
+                        if (type != null) {
+                            model.field(HPTableModel.FieldProperty.WILDCARDS, type);
+                        }
                     }
                     break;
-                /*case FeatureType.WILDCARDS:
-                    OFTableFeaturePropWildcards wildcards = (OFTableFeaturePropWildcards) featureProp;
-                    checkOxms(isHardware, wildcards.getOxmIds());
-                    break;*/
-                case FeatureType.APPLY_SETFIELD:
-                    OFTableFeaturePropApplySetfield applySetfield = (OFTableFeaturePropApplySetfield) featureProp;
-                    checkFields(isHardware, applySetfield.getOxmIds());
+                case FeatureType.WRITE_ACTIONS:
+                    checkActions(model, HPTableModel.ActionProperty.WRITE_ACTIONS,
+                                 ((OFTableFeaturePropWriteActions) featureProp).getActionIds(), isHardware);
                     break;
-                case FeatureType.APPLY_SETFIELD_MISS:
-                    OFTableFeaturePropApplySetfieldMiss applySetfieldMiss =
-                            (OFTableFeaturePropApplySetfieldMiss) featureProp;
-                    checkFields(isHardware, applySetfieldMiss.getOxmIds());
+                case FeatureType.WRITE_ACTIONS_MISS:
+                    checkActions(model, HPTableModel.ActionProperty.WRITE_ACTIONS_MISS,
+                                 ((OFTableFeaturePropWriteActionsMiss) featureProp).getActionIds(), isHardware);
+                    break;
+                case FeatureType.APPLY_ACTIONS:
+                    checkActions(model, HPTableModel.ActionProperty.APPLY_ACTIONS,
+                                 ((OFTableFeaturePropApplyActions) featureProp).getActionIds(), isHardware);
+                    break;
+                case FeatureType.APPLY_ACTIONS_MISS:
+                    checkActions(model, HPTableModel.ActionProperty.APPLY_ACTIONS_MISS,
+                                 ((OFTableFeaturePropApplyActionsMiss) featureProp).getActionIds(), isHardware);
                     break;
                 case FeatureType.WRITE_SETFIELD:
-                    OFTableFeaturePropWriteSetfield writeSetfield = (OFTableFeaturePropWriteSetfield) featureProp;
-                    checkFields(isHardware, writeSetfield.getOxmIds());
+                    checkFields(model, HPTableModel.FieldProperty.WRITE_SETFIELD,
+                                ((OFTableFeaturePropWriteSetfield) featureProp).getOxmIds(), isHardware);
                     break;
                 case FeatureType.WRITE_SETFIELD_MISS:
-                    OFTableFeaturePropWriteSetfieldMiss writeSetfieldMiss =
-                            (OFTableFeaturePropWriteSetfieldMiss) featureProp;
-                    checkFields(isHardware, writeSetfieldMiss.getOxmIds());
+                    checkFields(model, HPTableModel.FieldProperty.WRITE_SETFIELD_MISS,
+                                ((OFTableFeaturePropWriteSetfieldMiss) featureProp).getOxmIds(), isHardware);
+                    break;
+                case FeatureType.APPLY_SETFIELD:
+                    checkFields(model, HPTableModel.FieldProperty.APPLY_SETFIELD,
+                                ((OFTableFeaturePropApplySetfield) featureProp).getOxmIds(), isHardware);
+                    break;
+                case FeatureType.APPLY_SETFIELD_MISS:
+                    checkFields(model, HPTableModel.FieldProperty.APPLY_SETFIELD_MISS,
+                                ((OFTableFeaturePropApplySetfieldMiss) featureProp).getOxmIds(), isHardware);
                     break;
                 default:
                     log.warn("Ignoring feature type {}", featureProp);
                     break;
-
             }
         }
-
     }
 
-    // Extracts and adds criteria from a list of OXM ids.
-    private void checkOxms(boolean isHardware, List<U32> oxmIds) {
-        for (U32 type : oxmIds) {
-            Criterion.Type match = ExtractTypes.getCriterion(type.getRaw());
-            if (match != null) {
+    // Extracts and adds criteria, and their masked variants, from a list of OXM ids.
+    private void checkOxms(HPTableModel.Builder model, List<U32> oxmIds, boolean isHardware) {
+        for (int i = 0; i < oxmIds.size(); i++) {
+            int header = oxmIds.get(i).getRaw();
+            if (ExtractTypes.isExperimenter(header)) {
+                // Skip the experimenter id
+                i++;
+                continue;
+            }
+            Criterion.Type match = ExtractTypes.getCriterion(header);
+            if (match == null) {
+                continue;
+            }
+            Criterion.Type masked = ExtractTypes.masked(header, match);
+            model.field(HPTableModel.FieldProperty.MATCH, match);
+            update(b -> {
+                b.unsupportedCriteria().remove(match);
                 if (isHardware) {
-                    addHardwareCriterion(match);
+                    b.hardwareCriteria().add(match);
+                }
+                if (masked != null) {
+                    b.unsupportedCriteria().remove(masked);
+                    if (isHardware) {
+                        b.hardwareCriteria().add(masked);
+                    }
                 }
-                addSupportedCriterion(match);
+            });
+        }
+    }
+
+    // Extracts and adds instructions from a list of action ids.
+    private void checkActions(HPTableModel.Builder model, HPTableModel.ActionProperty property,
+                              List<OFActionId> actionIds, boolean isHardware) {
+        for (OFActionId id : actionIds) {
+            model.action(property, id.getType());
+            Capability capability = ACTIONS.get(id.getType());
+            if (capability == null) {
+                log.warn("OF Action Type {} not supported", id.getType());
+            } else {
+                update(b -> capability.addTo(b, isHardware));
             }
         }
     }
 
-    private void checkFields(boolean isHardware, List<U32> oxmIds) {
-        for (U32 type : oxmIds) {
-            Criterion.Type extracted = ExtractTypes.getCriterion(type.getRaw());
-            if (extracted == null) {
+    // Extracts and adds modification instructions from a list of OXM ids.
+    private void checkFields(HPTableModel.Builder model, HPTableModel.FieldProperty property,
+                             List<U32> oxmIds, boolean isHardware) {
+        for (int i = 0; i < oxmIds.size(); i++) {
+            int header = oxmIds.get(i).getRaw();
+            if (ExtractTypes.isExperimenter(header)) {
+                // Skip the experimenter id
+                i++;
                 continue;
             }
-            switch (extracted) {
-                case ARP_OP:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.ARP_OP);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.ARP_OP);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case ARP_SHA:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.ARP_SHA);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.ARP_SHA);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case ARP_SPA:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.ARP_SPA);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.ARP_SPA);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case ETH_SRC:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.ETH_SRC);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.ETH_SRC);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                case ETH_DST:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.ETH_DST);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.ETH_DST);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                case IPV4_DST:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.IPV4_DST);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.IPV4_DST);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case IPV4_SRC:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.IPV4_SRC);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.IPV4_SRC);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case IPV6_DST:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.IPV6_DST);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.IPV6_DST);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case IPV6_FLABEL:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.IPV6_FLABEL);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.IPV6_FLABEL);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case IPV6_SRC:
-                    addSupportedInstruction(Instruction.Type.L3MODIFICATION);
-                    addL3Mod(L3ModificationInstruction.L3SubType.IPV6_SRC);
-                    if (isHardware) {
-                        addHardwareL3Mod(L3ModificationInstruction.L3SubType.IPV6_SRC);
-                        addHardwareInstruction(Instruction.Type.L3MODIFICATION);
-                    }
-                    break;
-                case METADATA:
-                    addSupportedInstruction(Instruction.Type.METADATA);
-                    if (isHardware) {
-                        addHardwareInstruction(Instruction.Type.METADATA);
-                    }
-                    break;
-                case EXTENSION:
-                    addSupportedInstruction(Instruction.Type.EXTENSION);
-                    if (isHardware) {
-                        addHardwareInstruction(Instruction.Type.EXTENSION);
-                    }
-                    break;
-                case MPLS_BOS:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.MPLS_BOS);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.MPLS_BOS);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                case MPLS_LABEL:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.MPLS_LABEL);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.MPLS_LABEL);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                case ODU_SIGID:
-                    addSupportedInstruction(Instruction.Type.L1MODIFICATION);
-                    if (isHardware) {
-                        addHardwareInstruction(Instruction.Type.L1MODIFICATION);
-                    }
-                    break;
-                case PROTOCOL_INDEPENDENT:
-                    addSupportedInstruction(Instruction.Type.PROTOCOL_INDEPENDENT);
-                    if (isHardware) {
-                        addHardwareInstruction(Instruction.Type.PROTOCOL_INDEPENDENT);
-                    }
-                    break;
-                case TCP_DST:
-                    addSupportedInstruction(Instruction.Type.L4MODIFICATION);
-                    addL4Mod(L4ModificationInstruction.L4SubType.TCP_DST);
-                    if (isHardware) {
-                        addHardwareL4Mod(L4ModificationInstruction.L4SubType.TCP_DST);
-                        addHardwareInstruction(Instruction.Type.L4MODIFICATION);
-                    }
-                    break;
-                case TCP_SRC:
-                    addSupportedInstruction(Instruction.Type.L4MODIFICATION);
-                    addL4Mod(L4ModificationInstruction.L4SubType.TCP_SRC);
-                    if (isHardware) {
-                        addHardwareL4Mod(L4ModificationInstruction.L4SubType.TCP_SRC);
-                        addHardwareInstruction(Instruction.Type.L4MODIFICATION);
-                    }
-                    break;
-                case TUNNEL_ID:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.TUNNEL_ID);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.TUNNEL_ID);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                case UDP_DST:
-                    addSupportedInstruction(Instruction.Type.L4MODIFICATION);
-                    addL4Mod(L4ModificationInstruction.L4SubType.UDP_DST);
-                    if (isHardware) {
-                        addHardwareL4Mod(L4ModificationInstruction.L4SubType.UDP_DST);
-                        addHardwareInstruction(Instruction.Type.L4MODIFICATION);
-                    }
-                    break;
-                case UDP_SRC:
-                    addSupportedInstruction(Instruction.Type.L4MODIFICATION);
-                    addL4Mod(L4ModificationInstruction.L4SubType.UDP_SRC);
-                    if (isHardware) {
-                        addHardwareL4Mod(L4ModificationInstruction.L4SubType.UDP_SRC);
-                        addHardwareInstruction(Instruction.Type.L4MODIFICATION);
-                    }
-                    break;
-                case VLAN_PCP:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.VLAN_PCP);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.VLAN_PCP);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                case VLAN_VID:
-                    addSupportedInstruction(Instruction.Type.L2MODIFICATION);
-                    addL2Mod(L2ModificationInstruction.L2SubType.VLAN_ID);
-                    if (isHardware) {
-                        addHardwareL2Mod(L2ModificationInstruction.L2SubType.VLAN_ID);
-                        addHardwareInstruction(Instruction.Type.L2MODIFICATION);
-                    }
-                    break;
-                default:
-                    String name = (ExtractTypes.getCriterion(type.getRaw()) != null) ?
-                            ExtractTypes.getCriterion(type.getRaw()).name() : "null";
-                    log.debug("Unsupported action {}", name);
+            Criterion.Type field = ExtractTypes.getCriterion(header);
+            if (field == null) {
+                continue;
+            }
+            model.field(property, field);
+            Capability capability = SET_FIELDS.get(field);
+            if (capability == null) {
+                log.debug("Unsupported action {}", field.name());
+            } else {
+                update(b -> capability.addTo(b, isHardware));
             }
         }
     }
@@ -732,103 +656,153 @@ public final class HPFeatures {
      *
      * @param tableFeaturesList the list of OFTableFeatures received by the switch.
      */
-    public void extractCriteriaFromTableFeatures(List<OFTableFeatures> tableFeaturesList) {
-        for (OFTableFeatures tableFeatures: tableFeaturesList) {
-            boolean isHardware = false;
+    public synchronized void extractCriteriaFromTableFeatures(List<OFTableFeatures> tableFeaturesList) {
+        pending = profile.toBuilder();
+        try {
+            extractTables(tableFeaturesList);
+        } finally {
+            profile = pending.build();
+            pending = null;
+        }
 
-            switch (tableFeatures.getTableId().getValue()) {
-                case AbstractHPPipeline.HP_HARDWARE_TABLE:
-                    isHardware = true;
-                default:
-                    extractCriteriaForTable(tableFeatures.getProperties(), isHardware);
+        automaticSetup = true;
+        version.incrementAndGet();
+    }
 
+    private void extractTables(List<OFTableFeatures> tableFeaturesList) {
+        Map<Integer, HPTableModel> models = new HashMap<>(tables);
+
+        for (OFTableFeatures tableFeatures: tableFeaturesList) {
+            int tableId = tableFeatures.getTableId().getValue();
+            boolean isHardware = tableId == AbstractHPPipeline.HP_HARDWARE_TABLE;
+            if (isHardware) {
+                hardwareTableMaxEntries = tableFeatures.getMaxEntries();
             }
 
+            HPTableModel.Builder model = HPTableModel.builder(tableId)
+                    .maxEntries(tableFeatures.getMaxEntries())
+                    .metadata(tableFeatures.getMetadataMatch().getValue(),
+                              tableFeatures.getMetadataWrite().getValue());
+            extractTable(tableFeatures, model, isHardware);
+            models.put(tableId, model.build());
         }
 
-        automaticSetup = true;
+        tables = Collections.unmodifiableMap(models);
+    }
+
+    // Applies a change to the capabilities. Outside of an extraction the profile is copied,
+    // changed and interned again, so that profiles shared with other switches are never modified.
+    private synchronized void update(Consumer<HPCapabilityProfile.Builder> change) {
+        if (pending != null) {
+            change.accept(pending);
+        } else {
+            HPCapabilityProfile.Builder builder = profile.toBuilder();
+            change.accept(builder);
+            profile = builder.build();
+        }
+        version.incrementAndGet();
     }
 
     // Collection of getter and setter methods
 
     public void addSupportedCriterion(Criterion.Type criterion) {
-        unsupportedCriteria.remove(criterion);
+        update(b -> b.unsupportedCriteria().remove(criterion));
     }
 
     public void addSupportedInstruction(Instruction.Type instruction) {
-        unsupportedInstructions.remove(instruction);
+        update(b -> b.unsupportedInstructions().remove(instruction));
     }
 
     public void addL2Mod(L2ModificationInstruction.L2SubType l2mod) {
-        unsupportedL2mod.remove(l2mod);
+        update(b -> b.unsupportedL2mod().remove(l2mod));
     }
 
     public void addL3Mod(L3ModificationInstruction.L3SubType l3mod) {
-        unsupportedL3mod.remove(l3mod);
+        update(b -> b.unsupportedL3mod().remove(l3mod));
     }
 
     public void addL4Mod(L4ModificationInstruction.L4SubType l4mod) {
-        unsupportedL4mod.remove(l4mod);
+        update(b -> b.unsupportedL4mod().remove(l4mod));
     }
 
     public void addHardwareCriterion(Criterion.Type criterion) {
-        hardwareCriteria.add(criterion);
+        update(b -> b.hardwareCriteria().add(criterion));
     }
 
     public void addHardwareInstruction(Instruction.Type instruction) {
-        hardwareInstructions.add(instruction);
+        update(b -> b.hardwareInstructions().add(instruction));
     }
 
     public void addHardwareL2Mod(L2ModificationInstruction.L2SubType l2mod) {
-        hardwareInstructionsL2mod.add(l2mod);
+        update(b -> b.hardwareL2mod().add(l2mod));
     }
 
     public void addHardwareL3Mod(L3ModificationInstruction.L3SubType l3mod) {
-        hardwareInstructionsL3mod.add(l3mod);
+        update(b -> b.hardwareL3mod().add(l3mod));
     }
 
     public void addHardwareL4Mod(L4ModificationInstruction.L4SubType l4mod) {
-        hardwareInstructionsL4mod.add(l4mod);
+        update(b -> b.hardwareL4mod().add(l4mod));
     }
 
     public Set<Criterion.Type> getUnsupportedCriteria() {
-        return unsupportedCriteria;
+        return profile.unsupportedCriteria();
     }
 
     public Set<Instruction.Type> getUnsupportedInstructions() {
-        return unsupportedInstructions;
+        return profile.unsupportedInstructions();
     }
 
     public Set<L2ModificationInstruction.L2SubType> getUnsupportedL2mod() {
-        return unsupportedL2mod;
+        return profile.unsupportedL2mod();
     }
 
     public Set<L3ModificationInstruction.L3SubType> getUnsupportedL3mod() {
-        return unsupportedL3mod;
+        return profile.unsupportedL3mod();
     }
 
     public Set<L4ModificationInstruction.L4SubType> getUnsupportedL4mod() {
-        return unsupportedL4mod;
+        return profile.unsupportedL4mod();
     }
 
     public Set<Criterion.Type> getHardwareCriteria() {
-        return hardwareCriteria;
+        return profile.hardwareCriteria();
     }
 
     public Set<Instruction.Type> getHardwareInstructions() {
-        return hardwareInstructions;
+        return profile.hardwareInstructions();
     }
 
     public Set<L2ModificationInstruction.L2SubType> getHardwareInstructionsL2mod() {
-        return hardwareInstructionsL2mod;
+        return profile.hardwareL2mod();
     }
 
     public Set<L3ModificationInstruction.L3SubType> getHardwareInstructionsL3mod() {
-        return hardwareInstructionsL3mod;
+        return profile.hardwareL3mod();
     }
 
     public Set<L4ModificationInstruction.L4SubType> getHardwareInstructionsL4mod() {
-        return hardwareInstructionsL4mod;
+        return profile.hardwareL4mod();
+    }
+
+    /**
+     * Returns the current capabilities, an immutable profile shared with the switches
+     * having the same capabilities.
+     *
+     * @return the capability profile
+     */
+    public HPCapabilityProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the model of a table, as reported by TABLE_FEATURES or restored from HPCapabilityCache.
+     *
+     * @param tableId the table id, e.g. HP_HARDWARE_TABLE
+     * @return the model of the table, null if unknown
+     */
+    public HPTableModel getTableModel(int tableId) {
+        return tables.get(tableId);
     }
 
     public boolean isAutomaticSetup() {
@@ -838,4 +812,257 @@ public final class HPFeatures {
     public UUID getIdentifier() {
         return identifier;
     }
+
+    /**
+     * Returns the maximum number of entries of HP_HARDWARE_TABLE reported by TABLE_FEATURES.
+     *
+     * @return number of entries, 0 if unknown
+     */
+    public long getHardwareTableMaxEntries() {
+        return hardwareTableMaxEntries;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Compact binary form, used by HPCapabilityCache
+
+    /**
+     * Returns a hash of the names of all the enum constants used in the binary form.
+     * Binary forms written with a different schema, e.g. by another ONOS version, cannot be read.
+     *
+     * @return the schema hash
+     */
+    public static long schema() {
+        long hash = FNV_OFFSET;
+        for (Class<? extends Enum<?>> type : SCHEMA_TYPES) {
+            for (Enum<?> value : type.getEnumConstants()) {
+                hash = fnv(hash, value.name().hashCode());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns a fingerprint of the features, e.g. to detect a changed TABLE_FEATURES reply.
+     *
+     * @return the fingerprint
+     */
+    public synchronized long fingerprint() {
+        ByteBuffer buffer = payload(0);
+        return fingerprint(buffer, 0, buffer.capacity());
+    }
+
+    // FNV-1a hash of a range of bytes of a buffer
+    private static long fingerprint(ByteBuffer buffer, int start, int end) {
+        long hash = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            hash = fnv(hash, buffer.get(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the features in binary form: fingerprint, max entries of HP_HARDWARE_TABLE,
+     * the ten sets as bitmasks of the ordinals and the models of the tables.
+     *
+     * @return the binary form
+     */
+    public synchronized byte[] encode() {
+        ByteBuffer buffer = payload(Long.BYTES);
+        buffer.putLong(0, fingerprint(buffer, Long.BYTES, buffer.capacity()));
+        return buffer.array();
+    }
+
+    // Writes everything but the fingerprint after the first offset bytes of a new buffer.
+    // Tables are written by id, so that equal features always have the same binary form.
+    private ByteBuffer payload(int offset) {
+        Map<Integer, HPTableModel> models = new TreeMap<>(tables);
+        int size = offset + Long.BYTES + Short.BYTES + models.size() * TABLE_SIZE;
+        for (Class<? extends Enum<?>> type : SET_TYPES) {
+            size += setSize(type);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.position(offset);
+        buffer.putLong(hardwareTableMaxEntries);
+        List<Set<? extends Enum<?>>> sets = profile.sets();
+        for (int i = 0; i < sets.size(); i++) {
+            putSet(buffer, sets.get(i), SET_TYPES.get(i));
+        }
+        buffer.putShort((short) models.size());
+        for (HPTableModel model : models.values()) {
+            putTable(buffer, model);
+        }
+        return buffer;
+    }
+
+    /**
+     * Replaces the features, table models included, with the ones read from their binary form.
+     *
+     * @param buffer the buffer, positioned at the beginning of the binary form
+     * @return true if the features have been read, false if the binary form is corrupted
+     */
+    public synchronized boolean decode(ByteBuffer buffer) {
+        try {
+            long fingerprint = buffer.getLong();
+            int start = buffer.position();
+            long maxEntries = buffer.getLong();
+            HPCapabilityProfile.Builder builder = HPCapabilityProfile.builder();
+            List<Set<? extends Enum<?>>> sets = builder.sets();
+            for (int i = 0; i < sets.size(); i++) {
+                fill(sets.get(i), SET_TYPES.get(i), getWords(buffer));
+            }
+            int count = buffer.getShort() & 0xFFFF;
+            Map<Integer, HPTableModel> models = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                HPTableModel model = getTable(buffer);
+                models.put(model.tableId(), model);
+            }
+            if (fingerprint(buffer, start, buffer.position()) != fingerprint) {
+                log.warn("HP Driver - corrupted binary features, fingerprint mismatch");
+                return false;
+            }
+            profile = builder.build();
+            hardwareTableMaxEntries = maxEntries;
+            tables = Collections.unmodifiableMap(models);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            log.warn("HP Driver - truncated binary features");
+            return false;
+        }
+
+        automaticSetup = true;
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Table id, max entries, metadata masks, next tables as 256-bit masks, then the properties
+    private static void putTable(ByteBuffer buffer, HPTableModel model) {
+        buffer.put((byte) model.tableId());
+        buffer.putLong(model.maxEntries()).putLong(model.metadataMatch()).putLong(model.metadataWrite());
+        putTableIds(buffer, model.nextTables());
+        putTableIds(buffer, model.nextTablesMiss());
+        putSet(buffer, model.instructions(), OFInstructionType.class);
+        putSet(buffer, model.instructionsMiss(), OFInstructionType.class);
+        for (HPTableModel.ActionProperty property : HPTableModel.ActionProperty.values()) {
+            putSet(buffer, model.actions(property), OFActionType.class);
+        }
+        for (HPTableModel.FieldProperty property : HPTableModel.FieldProperty.values()) {
+            putSet(buffer, model.fields(property), Criterion.Type.class);
+        }
+    }
+
+    private static HPTableModel getTable(ByteBuffer buffer) {
+        HPTableModel.Builder model = HPTableModel.builder(buffer.get() & 0xFF)
+                .maxEntries(buffer.getLong())
+                .metadata(buffer.getLong(), buffer.getLong());
+        for (int table : getTableIds(buffer)) {
+            model.nextTable(table, false);
+        }
+        for (int table : getTableIds(buffer)) {
+            model.nextTable(table, true);
+        }
+        for (OFInstructionType type : getSet(buffer, OFInstructionType.class)) {
+            model.instruction(type, false);
+        }
+        for (OFInstructionType type : getSet(buffer, OFInstructionType.class)) {
+            model.instruction(type, true);
+        }
+        for (HPTableModel.ActionProperty property : HPTableModel.ActionProperty.values()) {
+            for (OFActionType type : getSet(buffer, OFActionType.class)) {
+                model.action(property, type);
+            }
+        }
+        for (HPTableModel.FieldProperty property : HPTableModel.FieldProperty.values()) {
+            for (Criterion.Type type : getSet(buffer, Criterion.Type.class)) {
+                model.field(property, type);
+            }
+        }
+        return model.build();
+    }
+
+    private static int tableSize() {
+        return 1 + 3 * Long.BYTES + 2 * TABLE_ID_WORDS * Long.BYTES + 2 * setSize(OFInstructionType.class)
+                + HPTableModel.ActionProperty.values().length * setSize(OFActionType.class)
+                + HPTableModel.FieldProperty.values().length * setSize(Criterion.Type.class);
+    }
+
+    private static void putTableIds(ByteBuffer buffer, Set<Integer> tableIds) {
+        long[] words = new long[TABLE_ID_WORDS];
+        for (int table : tableIds) {
+            words[table / Long.SIZE] |= 1L << (table % Long.SIZE);
+        }
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+    }
+
+    private static List<Integer> getTableIds(ByteBuffer buffer) {
+        List<Integer> tableIds = new ArrayList<>();
+        for (int w = 0; w < TABLE_ID_WORDS; w++) {
+            long word = buffer.getLong();
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                if ((word & (1L << bit)) != 0) {
+                    tableIds.add(w * Long.SIZE + bit);
+                }
+            }
+        }
+        return tableIds;
+    }
+
+    // Number of words, then the bitmask of the ordinals
+    private static int setSize(Class<? extends Enum<?>> type) {
+        return 1 + Long.BYTES * words(type.getEnumConstants().length);
+    }
+
+    private static void putSet(ByteBuffer buffer, Set<? extends Enum<?>> set, Class<? extends Enum<?>> type) {
+        long[] words = bits(set, type);
+        buffer.put((byte) words.length);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+    }
+
+    private static long[] getWords(ByteBuffer buffer) {
+        long[] words = new long[buffer.get()];
+        for (int w = 0; w < words.length; w++) {
+            words[w] = buffer.getLong();
+        }
+        return words;
+    }
+
+    private static <E extends Enum<E>> Set<E> getSet(ByteBuffer buffer, Class<E> type) {
+        Set<E> set = EnumSet.noneOf(type);
+        fill(set, type, getWords(buffer));
+        return set;
+    }
+
+    private static long fnv(long hash, long value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    private static int words(int constants) {
+        return (constants + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static long[] bits(Set<? extends Enum<?>> set, Class<? extends Enum<?>> type) {
+        long[] words = new long[words(type.getEnumConstants().length)];
+        for (Enum<?> value : set) {
+            words[value.ordinal() / Long.SIZE] |= 1L << (value.ordinal() % Long.SIZE);
+        }
+        return words;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void fill(Set<? extends Enum<?>> set, Class<? extends Enum<?>> type, long[] words) {
+        Set<Enum<?>> target = (Set<Enum<?>>) set;
+        Enum<?>[] constants = type.getEnumConstants();
+        target.clear();
+        for (int ordinal = 0; ordinal < constants.length && ordinal / Long.SIZE < words.length; ordinal++) {
+            if ((words[ordinal / Long.SIZE] & (1L << (ordinal % Long.SIZE))) != 0) {
+                target.add(constants[ordinal]);
+            }
+        }
+    }
 }
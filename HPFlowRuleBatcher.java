@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ *  Write-combining queue in front of the FlowRuleService of a single device.
+ *
+ *  Single-stage FlowRuleOperations are gathered for up to maxEntries rules or maxDelayMicros
+ *  microseconds, then submitted as one FlowRuleOperations. The context of every gathered
+ *  operation is still notified, with the failed rules that belong to it.
+ *
+ *  Operations with more than one stage, or touching a rule already queued, flush the queue
+ *  first, so that the order of the operations on the same rule is preserved.
+ *  With maxEntries lower than 2 operations are submitted immediately.
+ *
+ *  Operations are queued and flushed on the lane of the device, the delay timer included,
+ *  so the queue needs no locking. The timer is the one of the lanes, stopped with the bundle.
+ */
+
+public final class HPFlowRuleBatcher {
+
+    /**
+     * Reasons for submitting the queued operations.
+     */
+    public enum FlushReason {
+        /** The queue reached maxEntries rules. */
+        SIZE,
+        /** The oldest queued operation waited maxDelayMicros. */
+        TIMER,
+        /** A new operation touches a rule already in the queue. */
+        CONFLICT,
+        /** A multi-stage operation has to be submitted after the queued ones. */
+        BYPASS
+    }
+
+    private final Logger log = getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+    private final HPDeviceLane lane;
+    private final int maxEntries;
+    private final long maxDelayMicros;
+
+    private List<Pending> pending = new ArrayList<>();
+    private Set<FlowId> pendingIds = new HashSet<>();
+    private ScheduledFuture<?> timeout;
+
+    private final Histogram batchSize;
+    private final Histogram queueDelay;
+    private final Map<FlushReason, Counter> flushes = new EnumMap<>(FlushReason.class);
+
+    /**
+     * Creates a batcher for a device.
+     *
+     * @param flowRuleService the flow rule service
+     * @param lane the lane of the device
+     * @param maxEntries maximum number of rules in a batch, batching is disabled if lower than 2
+     * @param maxDelayMicros maximum time an operation waits in the queue
+     * @param metrics the metrics of the device
+     */
+    public HPFlowRuleBatcher(FlowRuleService flowRuleService, HPDeviceLane lane, int maxEntries,
+                             long maxDelayMicros, HPMetrics metrics) {
+        this.flowRuleService = flowRuleService;
+        this.lane = lane;
+        this.maxEntries = maxEntries;
+        this.maxDelayMicros = maxDelayMicros;
+
+        batchSize = metrics.histogram("flowBatchSize");
+        queueDelay = metrics.histogram("flowBatchQueueDelayMicros");
+        for (FlushReason reason : FlushReason.values()) {
+            flushes.put(reason, metrics.counter("flowBatchFlush" + reason.name()));
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 1;
+    }
+
+    /**
+     * Submits FlowRuleOperations, possibly combining them with other operations.
+     * To be called on the lane of the device.
+     *
+     * @param ops the operations, with their context
+     */
+    public void apply(FlowRuleOperations ops) {
+        if (!isEnabled()) {
+            flowRuleService.apply(ops);
+            return;
+        }
+
+        if (ops.stages().size() != 1) {
+            flush(FlushReason.BYPASS);
+            flowRuleService.apply(ops);
+            return;
+        }
+
+        for (FlowRuleOperation op : ops.stages().get(0)) {
+            if (pendingIds.contains(op.rule().id())) {
+                flush(FlushReason.CONFLICT);
+                break;
+            }
+        }
+
+        pending.add(new Pending(ops, System.nanoTime()));
+        for (FlowRuleOperation op : ops.stages().get(0)) {
+            pendingIds.add(op.rule().id());
+        }
+
+        if (pendingIds.size() >= maxEntries) {
+            flush(FlushReason.SIZE);
+        } else if (timeout == null) {
+            timeout = lane.schedule(() -> flush(FlushReason.TIMER), maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Submits the queued operations. To be called on the lane of the device.
+     *
+     * @param reason why the queue is flushed
+     */
+    public void flush(FlushReason reason) {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Pending> batch = pending;
+        pending = new ArrayList<>();
+        pendingIds = new HashSet<>();
+
+        long now = System.nanoTime();
+        FlowRuleOperations.Builder merged = FlowRuleOperations.builder();
+        for (Pending p : batch) {
+            queueDelay.update(TimeUnit.NANOSECONDS.toMicros(now - p.enqueued));
+            for (FlowRuleOperation op : p.ops.stages().get(0)) {
+                copy(merged, op);
+            }
+        }
+
+        FlowRuleOperations ops = merged.build(new BatchContext(batch));
+        batchSize.update(ops.stages().get(0).size());
+        flushes.get(reason).inc();
+        log.trace("HP Driver - flushing {} flow rule operations ({})", batch.size(), reason);
+
+        flowRuleService.apply(ops);
+    }
+
+    // Adds to the builder an operation of the same type
+    private static void copy(FlowRuleOperations.Builder builder, FlowRuleOperation op) {
+        switch (op.type()) {
+            case ADD:
+                builder.add(op.rule());
+                break;
+            case MODIFY:
+                builder.modify(op.rule());
+                break;
+            case REMOVE:
+            default:
+                builder.remove(op.rule());
+                break;
+        }
+    }
+
+    // A queued FlowRuleOperations and its enqueue time
+    private static final class Pending {
+        private final FlowRuleOperations ops;
+        private final long enqueued;
+
+        private Pending(FlowRuleOperations ops, long enqueued) {
+            this.ops = ops;
+            this.enqueued = enqueued;
+        }
+    }
+
+    // Dispatches the outcome of a batch to the contexts of the combined operations
+    private static final class BatchContext implements FlowRuleOperationsContext {
+        private final List<Pending> batch;
+
+        private BatchContext(List<Pending> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSuccess(FlowRuleOperations ops) {
+            for (Pending p : batch) {
+                if (p.ops.callback() != null) {
+                    p.ops.callback().onSuccess(p.ops);
+                }
+            }
+        }
+
+        @Override
+        public void onError(FlowRuleOperations ops) {
+            Set<FlowId> failed = new HashSet<>();
+            ops.stages().forEach(stage -> stage.forEach(op -> failed.add(op.rule().id())));
+
+            for (Pending p : batch) {
+                if (p.ops.callback() == null) {
+                    continue;
+                }
+
+                FlowRuleOperations.Builder own = FlowRuleOperations.builder();
+                boolean hasFailed = false;
+                for (FlowRuleOperation op : p.ops.stages().get(0)) {
+                    if (failed.contains(op.rule().id())) {
+                        copy(own, op);
+                        hasFailed = true;
+                    }
+                }
+
+                if (hasFailed) {
+                    p.ops.callback().onError(own.build());
+                } else {
+                    p.ops.callback().onSuccess(p.ops);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.core.GroupId;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ *  Local index of the groups installed on a device, keyed by the integer group id.
+ *
+ *  The index is kept up to date by the GroupListener of the pipeline, so that table
+ *  selection does not need to scan all the groups of the device for each GROUP instruction.
+ */
+
+public final class HPGroupIndex {
+
+    private final HPLongMap<GroupShape> groups = new HPLongMap<>();
+
+    /**
+     * Adds or replaces a group in the index.
+     *
+     * @param group the group, as notified by the group subsystem
+     */
+    public void update(Group group) {
+        groups.put(group.id().id(), GroupShape.of(group));
+    }
+
+    /**
+     * Removes a group from the index.
+     *
+     * @param group the removed group
+     */
+    public void remove(Group group) {
+        groups.remove(group.id().id());
+    }
+
+    /**
+     * Returns the shape of the group with the given id.
+     *
+     * @param groupId the group id
+     * @return the shape of the group, null if the group is unknown
+     */
+    public GroupShape get(GroupId groupId) {
+        return groups.get(groupId.id());
+    }
+
+    /**
+     * Removes all the groups from the index.
+     */
+    public void clear() {
+        groups.clear();
+    }
+
+    public int size() {
+        return groups.size();
+    }
+
+    /**
+     * Features of a group relevant for the table selection: type, state and
+     * whether every bucket contains one and only one OUTPUT action.
+     */
+    public static final class GroupShape {
+
+        private final Group.Type type;
+        private final Group.GroupState state;
+        private final boolean singleOutputBuckets;
+
+        private GroupShape(Group.Type type, Group.GroupState state, boolean singleOutputBuckets) {
+            this.type = type;
+            this.state = state;
+            this.singleOutputBuckets = singleOutputBuckets;
+        }
+
+        /**
+         * Computes the shape of a group.
+         *
+         * @param group the group
+         * @return the shape of the group
+         */
+        public static GroupShape of(Group group) {
+            boolean singleOutput = true;
+
+            if (group.buckets() != null) {
+                for (GroupBucket bucket : group.buckets().buckets()) {
+                    List<Instruction> instructions = bucket.treatment().allInstructions();
+
+                    if (instructions.size() != 1 || instructions.get(0).type() != Instruction.Type.OUTPUT) {
+                        singleOutput = false;
+                        break;
+                    }
+                }
+            }
+
+            return new GroupShape(group.type(), group.state(), singleOutput);
+        }
+
+        public Group.Type type() {
+            return type;
+        }
+
+        public Group.GroupState state() {
+            return state;
+        }
+
+        public boolean singleOutputBuckets() {
+            return singleOutputBuckets;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, state, singleOutputBuckets);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof GroupShape)) {
+                return false;
+            }
+            GroupShape that = (GroupShape) obj;
+            return type == that.type && state == that.state
+                    && singleOutputBuckets == that.singleOutputBuckets;
+        }
+
+        @Override
+        public String toString() {
+            return "GroupShape{type=" + type + ", state=" + state +
+                    ", singleOutputBuckets=" + singleOutputBuckets + "}";
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.onosproject.net.DeviceId;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Shapes of ForwardingObjectives that a device rejected in HP_HARDWARE_TABLE.
+ *
+ *  Static capability lists and TABLE_FEATURES do not describe exactly what each module
+ *  accepts in hardware. When a rule placed in HP_HARDWARE_TABLE fails, the signature of its
+ *  objective is recorded here, so that later objectives of the same shape are installed
+ *  directly in HP_SOFTWARE_TABLE.
+ *
+ *  Instances are registered per device and firmware version: they survive the
+ *  re-initialization of the pipeline and are dropped when the device reports a new firmware
+ *  or is removed from the device store.
+ *  A rejection may also be transient, e.g. a table full of rules installed by others, so
+ *  learned shapes expire after EXPIRATION_MINUTES and are tried in hardware again.
+ */
+
+public final class HPLearnedPlacements {
+
+    public static final int MAX_SHAPES = 1024;
+    public static final int EXPIRATION_MINUTES = 60;
+
+    private static final ConcurrentMap<DeviceId, HPLearnedPlacements> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String swVersion;
+    private final Cache<HPObjectiveSignature, Boolean> rejected = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SHAPES)
+            .expireAfterWrite(EXPIRATION_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private HPLearnedPlacements(String swVersion) {
+        this.swVersion = swVersion;
+    }
+
+    /**
+     * Returns the learned placements of a device, discarding the ones learned with another firmware.
+     *
+     * @param deviceId the device
+     * @param swVersion the firmware version of the device
+     * @return the learned placements
+     */
+    public static HPLearnedPlacements of(DeviceId deviceId, String swVersion) {
+        return INSTANCES.compute(deviceId, (id, current) ->
+                current != null && Objects.equals(current.swVersion, swVersion)
+                        ? current : new HPLearnedPlacements(swVersion));
+    }
+
+    /**
+     * Drops the learned placements of a device.
+     *
+     * @param deviceId the device
+     */
+    public static void remove(DeviceId deviceId) {
+        INSTANCES.remove(deviceId);
+    }
+
+    /**
+     * Records the shape of an objective rejected by the device in HP_HARDWARE_TABLE.
+     *
+     * @param sig the signature of the objective
+     */
+    public void reject(HPObjectiveSignature sig) {
+        rejected.put(sig, Boolean.TRUE);
+    }
+
+    /**
+     * Returns true if objectives of this shape are rejected by the device in HP_HARDWARE_TABLE.
+     *
+     * @param sig the signature of the objective
+     * @return boolean
+     */
+    public boolean isRejected(HPObjectiveSignature sig) {
+        return rejected.getIfPresent(sig) != null;
+    }
+
+    public long size() {
+        return rejected.size();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Rate limiter for the log messages generated for each objective.
+ *
+ *  Messages are grouped by an enum key: at most one message per key is let through
+ *  in each interval, the others are only counted.
+ *
+ * @param <E> type of the keys
+ */
+
+public final class HPLogLimiter<E extends Enum<E>> {
+
+    private final long intervalNanos;
+    private final AtomicLongArray last;
+    private final AtomicLongArray suppressed;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param keyType class of the keys
+     * @param intervalMillis minimum interval between two messages with the same key
+     */
+    public HPLogLimiter(Class<E> keyType, long intervalMillis) {
+        int keys = keyType.getEnumConstants().length;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.last = new AtomicLongArray(keys);
+        this.suppressed = new AtomicLongArray(keys);
+        long start = System.nanoTime() - intervalNanos;
+        for (int i = 0; i < keys; i++) {
+            last.set(i, start);
+        }
+    }
+
+    /**
+     * Checks if a message with the given key can be logged.
+     *
+     * @param key the key of the message
+     * @return number of messages suppressed since the previous one, -1 if this message has to be suppressed
+     */
+    public long tryAcquire(E key) {
+        int i = key.ordinal();
+        long now = System.nanoTime();
+        long previous = last.get(i);
+
+        if (now - previous >= intervalNanos && last.compareAndSet(i, previous, now)) {
+            return suppressed.getAndSet(i, 0);
+        }
+        suppressed.incrementAndGet(i);
+        return -1;
+    }
+}
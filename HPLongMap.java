@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ *  A hash map with primitive long keys, used by the driver for per-device indexes
+ *  keyed by group ids, flow ids and cookies.
+ *
+ *  Keys are stored in a long array with open addressing and linear probing, so lookups
+ *  do not allocate. Null values are not allowed. All the methods are synchronized.
+ *
+ * @param <V> type of the values
+ */
+
+public final class HPLongMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Creates an empty map.
+     */
+    public HPLongMap() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    // Finalization step of MurmurHash3, spreads sequential ids over the table
+    private int slot(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /**
+     * Returns the value associated to the key.
+     *
+     * @param key the key
+     * @return the value, null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long key) {
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Associates the value to the key.
+     *
+     * @param key the key
+     * @param value the value, not null
+     * @return the previous value, null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not allowed");
+        }
+
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        // Keep the load factor under 0.5
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value associated to the key, associating it first to the value
+     * computed by the function if the key is not in the map. The function is called
+     * at most once, while holding the lock of the map.
+     *
+     * @param key the key
+     * @param function computes the value from the key, not returning null
+     * @return the current or the computed value
+     */
+    public synchronized V computeIfAbsent(long key, LongFunction<? extends V> function) {
+        V value = get(key);
+        if (value == null) {
+            value = function.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Removes the key from the map.
+     *
+     * @param key the key
+     * @return the removed value, null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long key) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        if (values[i] == null) {
+            return null;
+        }
+
+        V removed = (V) values[i];
+        values[i] = null;
+        size--;
+
+        // Backward-shift the following entries of the cluster, so that no tombstone is needed
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                break;
+            }
+            int k = slot(keys[j]);
+            boolean inPlace = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!inPlace) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return removed;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the values in the map.
+     *
+     * @return list of values
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<V> values() {
+        List<V> list = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Removes all the entries and shrinks the map to the default capacity.
+     */
+    public synchronized void clear() {
+        allocate(DEFAULT_CAPACITY);
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns an estimate in bytes of the memory used by the map, excluding the values.
+     *
+     * @return number of bytes
+     */
+    public synchronized long footprint() {
+        // Object header and fields, two array headers, one long and one reference per slot
+        return 32 + 2 * 16 + (long) keys.length * (Long.BYTES + 4);
+    }
+}
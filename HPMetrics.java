@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onosproject.net.DeviceId;
+
+/**
+ *  Metrics of the HP driver for a single device.
+ *
+ *  Metrics are registered with the ONOS MetricsService under the "HPDriver" component,
+ *  using the device id as feature, so that they can be inspected with the "metrics" CLI command.
+ */
+
+public final class HPMetrics {
+
+    private static final String COMPONENT = "HPDriver";
+
+    private final MetricsService metricsService;
+    private final MetricsComponent component;
+    private final MetricsFeature feature;
+
+    /**
+     * Creates the metrics of a device.
+     *
+     * @param metricsService the ONOS metrics service
+     * @param deviceId the device
+     */
+    public HPMetrics(MetricsService metricsService, DeviceId deviceId) {
+        this.metricsService = metricsService;
+        this.component = metricsService.registerComponent(COMPONENT);
+        this.feature = component.registerFeature(deviceId.toString());
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     *
+     * @param name name of the metric
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        return metricsService.createCounter(component, feature, name);
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param name name of the metric
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        return metricsService.createHistogram(component, feature, name);
+    }
+
+    /**
+     * Registers a gauge with the given name, replacing the one registered
+     * by a previous instance of the pipeline for the same device.
+     *
+     * @param name name of the metric
+     * @param gauge the gauge
+     * @param <T> type of the value of the gauge
+     * @return the gauge
+     */
+    public <T> Gauge<T> gauge(String name, Gauge<T> gauge) {
+        metricsService.removeMetric(component, feature, name);
+        return metricsService.registerMetric(component, feature, name, gauge);
+    }
+
+    /**
+     * Returns the timer with the given name, creating it if needed.
+     *
+     * @param name name of the metric
+     * @return the timer
+     */
+    public Timer timer(String name) {
+        return metricsService.createTimer(component, feature, name);
+    }
+}
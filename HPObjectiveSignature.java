@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.core.GroupId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthTypeCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.flow.instructions.L3ModificationInstruction;
+import org.onosproject.net.flow.instructions.L4ModificationInstruction;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ *  Compact description of the features used by a ForwardingObjective.
+ *
+ *  The signature is built with a single pass over the selector and the treatment
+ *  of the objective. Table placement, unsupported-feature detection and the
+ *  construction of the hardware match are then reduced to subset tests between
+ *  the EnumSets of the signature and the EnumSets compiled at pipeline init().
+ *
+ *  Two signatures are equal when the objectives have the same "shape", i.e. they
+ *  use the same features regardless of the matched and written values.
+ *  The ETH_TYPE value is part of the shape, since HP modules place rules depending on it.
+ */
+
+public final class HPObjectiveSignature {
+
+    /**
+     * Value of ethType() when the objective does not match on ETH_TYPE.
+     */
+    public static final int NO_ETH_TYPE = -1;
+
+    private final EnumSet<Criterion.Type> criteria = EnumSet.noneOf(Criterion.Type.class);
+    private final EnumSet<Instruction.Type> instructions = EnumSet.noneOf(Instruction.Type.class);
+    private final EnumSet<L2ModificationInstruction.L2SubType> l2mod =
+            EnumSet.noneOf(L2ModificationInstruction.L2SubType.class);
+    private final EnumSet<L3ModificationInstruction.L3SubType> l3mod =
+            EnumSet.noneOf(L3ModificationInstruction.L3SubType.class);
+    private final EnumSet<L4ModificationInstruction.L4SubType> l4mod =
+            EnumSet.noneOf(L4ModificationInstruction.L4SubType.class);
+
+    private int ethType = NO_ETH_TYPE;
+    private boolean outputToController = false;
+    private boolean clearedDeferred = false;
+    private List<GroupId> groups = Collections.emptyList();
+
+    private HPObjectiveSignature() {
+    }
+
+    /**
+     * Builds the signature of a ForwardingObjective having a treatment.
+     *
+     * @param fwd the ForwardingObjective to be analyzed
+     * @return the signature of the objective
+     */
+    public static HPObjectiveSignature of(ForwardingObjective fwd) {
+        HPObjectiveSignature sig = new HPObjectiveSignature();
+
+        for (Criterion criterion : fwd.selector().criteria()) {
+            sig.criteria.add(criterion.type());
+
+            if (criterion.type() == Criterion.Type.ETH_TYPE) {
+                sig.ethType = ((EthTypeCriterion) criterion).ethType().toShort() & 0xFFFF;
+            }
+        }
+
+        for (Instruction instruction : fwd.treatment().allInstructions()) {
+            sig.instructions.add(instruction.type());
+
+            switch (instruction.type()) {
+                case OUTPUT:
+                    if (PortNumber.CONTROLLER.equals(((Instructions.OutputInstruction) instruction).port())) {
+                        sig.outputToController = true;
+                    }
+                    break;
+                case GROUP:
+                    if (sig.groups.isEmpty()) {
+                        sig.groups = new ArrayList<>(1);
+                    }
+                    sig.groups.add(((Instructions.GroupInstruction) instruction).groupId());
+                    break;
+                case L2MODIFICATION:
+                    sig.l2mod.add(((L2ModificationInstruction) instruction).subtype());
+                    break;
+                case L3MODIFICATION:
+                    sig.l3mod.add(((L3ModificationInstruction) instruction).subtype());
+                    break;
+                case L4MODIFICATION:
+                    sig.l4mod.add(((L4ModificationInstruction) instruction).subtype());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        sig.clearedDeferred = fwd.treatment().clearedDeferred();
+
+        return sig;
+    }
+
+    /**
+     * Returns true if the objective matches on ETH_TYPE with the given value.
+     *
+     * @param type the ethernet type, e.g. Ethernet.TYPE_IPV4
+     * @return boolean
+     */
+    public boolean hasEthType(short type) {
+        return ethType == (type & 0xFFFF);
+    }
+
+    // Collection of getter methods. Returned sets must not be modified.
+
+    public EnumSet<Criterion.Type> criteria() {
+        return criteria;
+    }
+
+    public EnumSet<Instruction.Type> instructions() {
+        return instructions;
+    }
+
+    public EnumSet<L2ModificationInstruction.L2SubType> l2mod() {
+        return l2mod;
+    }
+
+    public EnumSet<L3ModificationInstruction.L3SubType> l3mod() {
+        return l3mod;
+    }
+
+    public EnumSet<L4ModificationInstruction.L4SubType> l4mod() {
+        return l4mod;
+    }
+
+    public int ethType() {
+        return ethType;
+    }
+
+    public boolean outputToController() {
+        return outputToController;
+    }
+
+    public boolean clearedDeferred() {
+        return clearedDeferred;
+    }
+
+    /**
+     * Returns the groups referenced by GROUP instructions.
+     * Group ids are values, hence they are not part of the shape.
+     *
+     * @return list of group ids
+     */
+    public List<GroupId> groups() {
+        return groups;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(criteria, instructions, l2mod, l3mod, l4mod,
+                            ethType, outputToController, clearedDeferred);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HPObjectiveSignature)) {
+            return false;
+        }
+        HPObjectiveSignature that = (HPObjectiveSignature) obj;
+        return ethType == that.ethType
+                && outputToController == that.outputToController
+                && clearedDeferred == that.clearedDeferred
+                && criteria.equals(that.criteria)
+                && instructions.equals(that.instructions)
+                && l2mod.equals(that.l2mod)
+                && l3mod.equals(that.l3mod)
+                && l4mod.equals(that.l4mod);
+    }
+
+    @Override
+    public String toString() {
+        return "HPObjectiveSignature{criteria=" + criteria +
+                ", instructions=" + instructions +
+                ", l2mod=" + l2mod +
+                ", l3mod=" + l3mod +
+                ", l4mod=" + l4mod +
+                ", ethType=" + ethType +
+                ", outputToController=" + outputToController +
+                ", clearedDeferred=" + clearedDeferred + "}";
+    }
+}
@@ -17,13 +17,10 @@
 package org.onosproject.drivers.hp;
 
 import org.onlab.packet.Ethernet;
-import org.onosproject.core.GroupId;
-import org.onosproject.net.PortNumber;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.criteria.EthCriterion;
-import org.onosproject.net.flow.criteria.EthTypeCriterion;
 import org.onosproject.net.flow.criteria.IPCriterion;
 import org.onosproject.net.flow.criteria.PortCriterion;
 import org.onosproject.net.flow.criteria.VlanIdCriterion;
@@ -31,7 +28,6 @@ import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.L2ModificationInstruction;
 import org.onosproject.net.flow.instructions.L3ModificationInstruction;
 import org.onosproject.net.flow.instructions.L4ModificationInstruction;
-import org.onosproject.net.flow.instructions.Instructions;
 import org.onosproject.net.flowobjective.FilteringObjective;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.group.Group;
@@ -39,6 +35,7 @@ import org.onosproject.net.group.Group;
 import org.slf4j.Logger;
 
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -68,7 +65,7 @@ public class HPPipelineV2 extends AbstractHPPipeline {
     }
 
     @Override
-    protected void initUnSupportedFeatures() {
+    protected void initUnSupportedFeatures(HPCapabilityProfile.Builder features) {
         // "Manually" initialize unsupported features
         Set<Criterion.Type> currentUnsuppCriteria = new HashSet<>();
         Set<Instruction.Type> currentUnsuppInstruction = new HashSet<>();
@@ -126,40 +123,40 @@ public class HPPipelineV2 extends AbstractHPPipeline {
 
         log.info("HP V2 Driver - Read features for UUID {}", hpFeatures.getIdentifier().toString());
 
-        unsupportedCriteria.addAll(hpFeatures.getUnsupportedCriteria());
-        unsupportedInstructions.addAll(hpFeatures.getUnsupportedInstructions());
-        unsupportedL2mod.addAll(hpFeatures.getUnsupportedL2mod());
-        unsupportedL3mod.addAll(hpFeatures.getUnsupportedL3mod());
-        unsupportedL4mod.addAll(hpFeatures.getUnsupportedL4mod());
+        features.unsupportedCriteria().addAll(hpFeatures.getUnsupportedCriteria());
+        features.unsupportedInstructions().addAll(hpFeatures.getUnsupportedInstructions());
+        features.unsupportedL2mod().addAll(hpFeatures.getUnsupportedL2mod());
+        features.unsupportedL3mod().addAll(hpFeatures.getUnsupportedL3mod());
+        features.unsupportedL4mod().addAll(hpFeatures.getUnsupportedL4mod());
 
         // Uncomment to check correctness of automatically-defined unsupported criteria.
 
 
         log.info("HP V2 Driver - Unsupported criteria ------------------------------------------");
-        for (Criterion.Type c: unsupportedCriteria) {
+        for (Criterion.Type c: features.unsupportedCriteria()) {
             log.info("  - {}", c.name());
         }
         log.info("HP V2 Driver - Unsupported instructions --------------------------------------");
-        for (Instruction.Type c: unsupportedInstructions) {
+        for (Instruction.Type c: features.unsupportedInstructions()) {
             log.info("  - {}", c.name());
         }
         log.info("HP V2 Driver - Unsupported L2Mod ---------------------------------------------");
-        for (L2ModificationInstruction.L2SubType c: unsupportedL2mod) {
+        for (L2ModificationInstruction.L2SubType c: features.unsupportedL2mod()) {
             log.info("  - {}", c.name());
         }
         log.info("HP V2 Driver - Unsupported L3Mod ---------------------------------------------");
-        for (L3ModificationInstruction.L3SubType c: unsupportedL3mod) {
+        for (L3ModificationInstruction.L3SubType c: features.unsupportedL3mod()) {
             log.info("  - {}", c.name());
         }
         log.info("HP V2 Driver - Unsupported L4Mod ---------------------------------------------");
-        for (L4ModificationInstruction.L4SubType c: unsupportedL4mod) {
+        for (L4ModificationInstruction.L4SubType c: features.unsupportedL4mod()) {
             log.info("  - {}", c.name());
         }
 
     }
 
     @Override
-    protected void initHardwareCriteria() {
+    protected void initHardwareCriteria(HPCapabilityProfile.Builder features) {
         log.info("HP V2 Driver - Initializing hardware supported criteria");
 
         // Get the HPFeatures object for this dpid
@@ -167,34 +164,34 @@ public class HPPipelineV2 extends AbstractHPPipeline {
 
         if (!hpFeatures.isAutomaticSetup()) {
             // Manual configuration
-            hardwareCriteria.add(Criterion.Type.IN_PORT);
-            hardwareCriteria.add(Criterion.Type.VLAN_VID);
-            hardwareCriteria.add(Criterion.Type.VLAN_PCP);
+            features.hardwareCriteria().add(Criterion.Type.IN_PORT);
+            features.hardwareCriteria().add(Criterion.Type.VLAN_VID);
+            features.hardwareCriteria().add(Criterion.Type.VLAN_PCP);
 
             //Match in hardware is not supported ETH_TYPE == VLAN (0x8100)
-            hardwareCriteria.add(Criterion.Type.ETH_TYPE);
-
-            hardwareCriteria.add(Criterion.Type.ETH_SRC);
-            hardwareCriteria.add(Criterion.Type.ETH_DST);
-            hardwareCriteria.add(Criterion.Type.IPV4_SRC);
-            hardwareCriteria.add(Criterion.Type.IPV4_DST);
-            hardwareCriteria.add(Criterion.Type.IP_PROTO);
-            hardwareCriteria.add(Criterion.Type.IP_DSCP);
-            hardwareCriteria.add(Criterion.Type.TCP_SRC);
-            hardwareCriteria.add(Criterion.Type.TCP_DST);
+            features.hardwareCriteria().add(Criterion.Type.ETH_TYPE);
+
+            features.hardwareCriteria().add(Criterion.Type.ETH_SRC);
+            features.hardwareCriteria().add(Criterion.Type.ETH_DST);
+            features.hardwareCriteria().add(Criterion.Type.IPV4_SRC);
+            features.hardwareCriteria().add(Criterion.Type.IPV4_DST);
+            features.hardwareCriteria().add(Criterion.Type.IP_PROTO);
+            features.hardwareCriteria().add(Criterion.Type.IP_DSCP);
+            features.hardwareCriteria().add(Criterion.Type.TCP_SRC);
+            features.hardwareCriteria().add(Criterion.Type.TCP_DST);
         } else {
             log.debug("HP V2 Driver: using TABLE_FEATURES hardware criteria");
-            hardwareCriteria.addAll(hpFeatures.getHardwareCriteria());
+            features.hardwareCriteria().addAll(hpFeatures.getHardwareCriteria());
         }
 
         log.info("HP V2 Driver - Hardware criteria ------------------------------------------");
-        for (Criterion.Type c: hardwareCriteria) {
+        for (Criterion.Type c: features.hardwareCriteria()) {
             log.info(" V2 - {}", c.name());
         }
     }
 
     @Override
-    protected void initHardwareInstructions() {
+    protected void initHardwareInstructions(HPCapabilityProfile.Builder features) {
         log.info("HP V2 Driver - Initializing hardware supported instructions");
 
         // Get the HPFeatures object for this dpid
@@ -202,100 +199,52 @@ public class HPPipelineV2 extends AbstractHPPipeline {
 
         if (!hpFeatures.isAutomaticSetup()) {
             // Manual configuration
-            hardwareInstructions.add(Instruction.Type.OUTPUT);
-            hardwareInstructions.add(Instruction.Type.GROUP);
-
-            hardwareInstructions.add(Instruction.Type.L2MODIFICATION);
-            hardwareInstructionsL2mod.add(L2ModificationInstruction.L2SubType.ETH_SRC);
-            hardwareInstructionsL2mod.add(L2ModificationInstruction.L2SubType.ETH_DST);
-            hardwareInstructionsL2mod.add(L2ModificationInstruction.L2SubType.VLAN_ID);
-            hardwareInstructionsL2mod.add(L2ModificationInstruction.L2SubType.VLAN_PCP);
+            features.hardwareInstructions().add(Instruction.Type.OUTPUT);
+            features.hardwareInstructions().add(Instruction.Type.GROUP);
+
+            features.hardwareInstructions().add(Instruction.Type.L2MODIFICATION);
+            features.hardwareL2mod().add(L2ModificationInstruction.L2SubType.ETH_SRC);
+            features.hardwareL2mod().add(L2ModificationInstruction.L2SubType.ETH_DST);
+            features.hardwareL2mod().add(L2ModificationInstruction.L2SubType.VLAN_ID);
+            features.hardwareL2mod().add(L2ModificationInstruction.L2SubType.VLAN_PCP);
         } else {
             log.debug("HP V2 Driver: using TABLE_FEATURES hardware supported instructions");
-            hardwareInstructions.addAll(hpFeatures.getHardwareInstructions());
-            hardwareInstructionsL2mod.addAll(hpFeatures.getHardwareInstructionsL2mod());
+            features.hardwareInstructions().addAll(hpFeatures.getHardwareInstructions());
+            features.hardwareL2mod().addAll(hpFeatures.getHardwareInstructionsL2mod());
         }
 
-        hardwareInstructionsL3mod.addAll(hpFeatures.getHardwareInstructionsL3mod());
-        hardwareInstructionsL4mod.addAll(hpFeatures.getHardwareInstructionsL4mod());
-
-        hardwareGroups.add(Group.Type.ALL);
+        features.hardwareL3mod().addAll(hpFeatures.getHardwareInstructionsL3mod());
+        features.hardwareL4mod().addAll(hpFeatures.getHardwareInstructionsL4mod());
 
         log.info("HP V2 Driver - Hardware instruction ---------------------------------------");
-        for (Instruction.Type c: hardwareInstructions) {
+        for (Instruction.Type c: features.hardwareInstructions()) {
             log.info(" V2 - {}", c.name());
         }
         log.info("HP V2 Driver - Hardware L2 ------------------------------------------------");
-        for (L2ModificationInstruction.L2SubType c: hardwareInstructionsL2mod) {
+        for (L2ModificationInstruction.L2SubType c: features.hardwareL2mod()) {
             log.info(" V2 - {}", c.name());
         }
         log.info("HP V2 Driver - Hardware L3 ------------------------------------------------");
-        for (L3ModificationInstruction.L3SubType c: hardwareInstructionsL3mod) {
+        for (L3ModificationInstruction.L3SubType c: features.hardwareL3mod()) {
             log.info(" V2 - {}", c.name());
         }
         log.info("HP V2 Driver - Hardware L4 ------------------------------------------------");
-        for (L4ModificationInstruction.L4SubType c: hardwareInstructionsL4mod) {
+        for (L4ModificationInstruction.L4SubType c: features.hardwareL4mod()) {
             log.info(" V2 - {}", c.name());
         }
     }
 
-    //Return TRUE if ForwardingObjective fwd includes UNSUPPORTED features
-    @Override
-    protected boolean checkUnSupportedFeatures(ForwardingObjective fwd) {
-        boolean unsupportedFeatures = false;
-
-        for (Criterion criterion : fwd.selector().criteria()) {
-            if (this.unsupportedCriteria.contains(criterion.type())) {
-                log.warn("HP V2 Driver - unsupported criteria {}", criterion.type());
-
-                unsupportedFeatures = true;
-            }
-        }
-
-        for (Instruction instruction : fwd.treatment().allInstructions()) {
-            if (this.unsupportedInstructions.contains(instruction.type())) {
-                log.warn("HP V2 Driver - unsupported instruction {}", instruction.type());
-
-                unsupportedFeatures = true;
-            }
-
-            if (instruction.type() == Instruction.Type.L2MODIFICATION) {
-                if (this.unsupportedL2mod.contains(((L2ModificationInstruction) instruction).subtype())) {
-                    log.warn("HP V2 Driver - unsupported L2MODIFICATION instruction {}",
-                            ((L2ModificationInstruction) instruction).subtype());
-
-                    unsupportedFeatures = true;
-                }
-            }
-
-            if (instruction.type() == Instruction.Type.L3MODIFICATION) {
-                if (this.unsupportedL3mod.contains(((L3ModificationInstruction) instruction).subtype())) {
-                    log.warn("HP V2 Driver - unsupported L3MODIFICATION instruction {}",
-                            ((L3ModificationInstruction) instruction).subtype());
-
-                    unsupportedFeatures = true;
-                }
-            }
-        }
-
-        return unsupportedFeatures;
-    }
-
     @Override
-    protected int getHwMatchesAndBuild(ForwardingObjective fwd, TrafficSelector.Builder selectorBuilder) {
+    protected int getHwMatchesAndBuild(ForwardingObjective fwd, HPObjectiveSignature sig,
+                                       TrafficSelector.Builder selectorBuilder) {
         int count = 0;
 
-        log.info("HP V2 Driver - Checking possible HARDWARE match for a rule to be installed in SOFTWARE");
+        log.trace("HP V2 Driver - Checking possible HARDWARE match for a rule to be installed in SOFTWARE");
 
         for (Criterion criterion : fwd.selector().criteria()) {
 
-            if (hardwareCriteria.contains(criterion.type())) {
-                if (criterion.type() == Criterion.Type.ETH_TYPE) {
-                    if (((EthTypeCriterion) criterion).ethType().toShort() != Ethernet.TYPE_VLAN) {
-                        count++;
-                        selectorBuilder.add(criterion);
-                    }
-                } else if (!(deviceHwVersion.contains("2920") && criterion.type() == Criterion.Type.ETH_TYPE)) {
+            if (capabilities().hardwareCriteria().contains(criterion.type())) {
+                if (criterion.type() != Criterion.Type.ETH_TYPE || !sig.hasEthType(Ethernet.TYPE_VLAN)) {
                     count++;
                     selectorBuilder.add(criterion);
                 }
@@ -307,131 +256,13 @@ public class HPPipelineV2 extends AbstractHPPipeline {
     }
 
     @Override
-    protected int tableIdForForwardingObjective(ForwardingObjective fwd) {
-        boolean hardwareProcess = true;
-
-        log.info("HP V2 Driver - Evaluating the ForwardingObjective for proper TableID");
-
-        //Check criteria supported in hardware
-        for (Criterion criterion : fwd.selector().criteria()) {
-
-            if (!this.hardwareCriteria.contains(criterion.type())) {
-                log.warn("HP V2 Driver - criterion {} only supported in SOFTWARE", criterion.type());
-
-                hardwareProcess = false;
-                break;
-            }
-
-            //V2 does not support hardware match on ETH_TYPE of value TYPE_VLAN (tested on HP3800 16.04)
-            if (criterion.type() == Criterion.Type.ETH_TYPE) {
-
-                if (((EthTypeCriterion) criterion).ethType().toShort() == Ethernet.TYPE_VLAN) {
-                    log.warn("HP V2 Driver - ETH_TYPE == VLAN (0x8100) is only supported in software");
-
-                    hardwareProcess = false;
-                    break;
-                }
-            }
-
-            //HP2920 cannot match in hardware the ETH_DST in non-IP packets - TO BE REFINED AND TESTED
-            if (deviceHwVersion.contains("2920")) {
-
-                 if (criterion.type() == Criterion.Type.ETH_DST) {
-                     log.warn("HP V2 Driver (specific for HP2920) " +
-                             "- criterion {} only supported in SOFTWARE", criterion.type());
-
-                     hardwareProcess = false;
-                     break;
-                 }
-            }
-        }
-
-        //Check if a CLEAR action is included
-        if (fwd.treatment().clearedDeferred()) {
-            log.warn("HP V2 Driver - CLEAR action only supported in SOFTWARE");
-
-            hardwareProcess = false;
-        }
-
-        //If criteria can be processed in hardware, then check treatment
-        if (hardwareProcess) {
-            for (Instruction instruction : fwd.treatment().allInstructions()) {
-
-                //Check if the instruction type is contained in the hardware instruction
-                if (!this.hardwareInstructions.contains(instruction.type())) {
-                    log.warn("HP V2 Driver - instruction {} only supported in SOFTWARE", instruction.type());
-
-                    hardwareProcess = false;
-                    break;
-                }
-
-                /** If output is CONTROLLER_PORT the flow entry could be installed in hardware
-                 * but is anyway processed in software because OPENFLOW header has to be added
-                 */
-                if (instruction.type() == Instruction.Type.OUTPUT) {
-                    if (((Instructions.OutputInstruction) instruction).port() == PortNumber.CONTROLLER) {
-                        log.warn("HP V2 Driver - Forwarding to CONTROLLER only supported in software");
-
-                        hardwareProcess = false;
-                        break;
-                    }
-                }
-
-                //Check if the specific L2MODIFICATION.subtype is supported in hardware
-                if (instruction.type() == Instruction.Type.L2MODIFICATION) {
-
-                    if (!this.hardwareInstructionsL2mod.contains(((L2ModificationInstruction) instruction).subtype())) {
-                        log.warn("HP V2 Driver - L2MODIFICATION.subtype {} only supported in SOFTWARE",
-                                ((L2ModificationInstruction) instruction).subtype());
-
-                        hardwareProcess = false;
-                        break;
-                    }
-                }
-
-                //Check if the specific GROUP addressed in the instruction is:
-                // --- installed in the device
-                // --- type ALL
-                // TODO --- check if all the buckets contains one and only one output action
-                if (instruction.type() == Instruction.Type.GROUP) {
-                    boolean groupInstalled = false;
-
-                    GroupId groupId = ((Instructions.GroupInstruction) instruction).groupId();
-
-                    Iterable<Group> groupsOnDevice = groupService.getGroups(deviceId);
-
-                    for (Group group : groupsOnDevice) {
-
-                        if ((group.state() == Group.GroupState.ADDED) && (group.id().equals(groupId))) {
-                            groupInstalled = true;
-
-                            if (group.type() != Group.Type.ALL) {
-                                log.warn("HP V2 Driver - group type {} only supported in SOFTWARE",
-                                        group.type().toString());
-                                hardwareProcess = false;
-                            }
-
-                            break;
-                        }
-                    }
-
-                    if (!groupInstalled) {
-                        log.warn("HP V2 Driver - referenced group is not installed on the device.");
-                        hardwareProcess = false;
-                    }
-                }
-            }
-        }
-
-        if (hardwareProcess) {
-            log.warn("HP V2 Driver - This flow rule is supported in HARDWARE");
-            return HP_HARDWARE_TABLE;
-        } else {
-            //TODO: create a specific flow in table 100 to redirect selected traffic on table 200
-
-            log.warn("HP V2 Driver - This flow rule is only supported in SOFTWARE");
-            return HP_SOFTWARE_TABLE;
-        }
+    protected void initPlacementRules(HPPlacementRules.Builder rules) {
+        //V2 does not support hardware match on ETH_TYPE of value TYPE_VLAN (tested on HP3800 16.04)
+        //HP2920 cannot match in hardware the ETH_DST in non-IP packets - TO BE REFINED AND TESTED
+        rules.ethTypeNotIn(Ethernet.TYPE_VLAN)
+                .modelCriterionInSoftware("2920", Criterion.Type.ETH_DST)
+                .clearInSoftware()
+                .groups(EnumSet.of(Group.Type.ALL));
     }
 
     @Override
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.net.DeviceId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *  Ring buffer of the last placement decisions taken by the pipeline of a device.
+ *
+ *  The buffer is preallocated as arrays of primitive fields, so recording a decision
+ *  does not allocate. Histories are registered per device, so that they can be dumped
+ *  from the CLI with the "hp-placements" command.
+ */
+
+public final class HPPlacementHistory {
+
+    private static final ConcurrentMap<DeviceId, HPPlacementHistory> HISTORIES = new ConcurrentHashMap<>();
+
+    private static final HPPlacementReason[] REASONS = HPPlacementReason.values();
+
+    /**
+     * Receives the entries of the history.
+     */
+    public interface Visitor {
+        /**
+         * Visits an entry.
+         *
+         * @param timestamp wall-clock time of the decision, in milliseconds
+         * @param objectiveId id of the ForwardingObjective
+         * @param remove true if the objective was a REMOVE
+         * @param table the chosen table
+         * @param reason the reason of the placement
+         * @param hwMatches number of criteria of the hardware prefix rule, 0 if none
+         * @param latencyNanos time taken by the decision, in nanoseconds
+         */
+        void visit(long timestamp, int objectiveId, boolean remove, int table,
+                   HPPlacementReason reason, int hwMatches, long latencyNanos);
+    }
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final long[] latencies;
+    private final int[] objectiveIds;
+    private final short[] tables;
+    private final short[] hwMatches;
+    private final byte[] reasons;
+    private final boolean[] removes;
+    private long recorded;
+
+    private HPPlacementHistory(int capacity) {
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.latencies = new long[capacity];
+        this.objectiveIds = new int[capacity];
+        this.tables = new short[capacity];
+        this.hwMatches = new short[capacity];
+        this.reasons = new byte[capacity];
+        this.removes = new boolean[capacity];
+    }
+
+    /**
+     * Creates the history of a device, replacing the previous one.
+     *
+     * @param deviceId the device
+     * @param capacity number of decisions kept, at least 1
+     * @return the history
+     */
+    public static HPPlacementHistory register(DeviceId deviceId, int capacity) {
+        HPPlacementHistory history = new HPPlacementHistory(Math.max(1, capacity));
+        HISTORIES.put(deviceId, history);
+        return history;
+    }
+
+    /**
+     * Returns the history of a device.
+     *
+     * @param deviceId the device
+     * @return the history, null if the device has no HP pipeline
+     */
+    public static HPPlacementHistory get(DeviceId deviceId) {
+        return HISTORIES.get(deviceId);
+    }
+
+    /**
+     * Removes the history of a device, unless it has already been replaced.
+     *
+     * @param deviceId the device
+     * @param history the history to be removed
+     */
+    public static void unregister(DeviceId deviceId, HPPlacementHistory history) {
+        HISTORIES.remove(deviceId, history);
+    }
+
+    /**
+     * Records a placement decision, overwriting the oldest one if the buffer is full.
+     *
+     * @param objectiveId id of the ForwardingObjective
+     * @param remove true if the objective is a REMOVE
+     * @param table the chosen table
+     * @param reason the reason of the placement
+     * @param hwMatchCount number of criteria of the hardware prefix rule, 0 if none
+     * @param latencyNanos time taken by the decision, in nanoseconds
+     */
+    public synchronized void record(int objectiveId, boolean remove, int table, HPPlacementReason reason,
+                                    int hwMatchCount, long latencyNanos) {
+        int i = (int) (recorded % capacity);
+        timestamps[i] = System.currentTimeMillis();
+        latencies[i] = latencyNanos;
+        objectiveIds[i] = objectiveId;
+        tables[i] = (short) table;
+        hwMatches[i] = (short) hwMatchCount;
+        reasons[i] = (byte) reason.ordinal();
+        removes[i] = remove;
+        recorded++;
+    }
+
+    /**
+     * Visits the recorded decisions, from the oldest to the most recent one.
+     *
+     * @param visitor the visitor
+     */
+    public synchronized void forEach(Visitor visitor) {
+        long first = Math.max(0, recorded - capacity);
+        for (long n = first; n < recorded; n++) {
+            int i = (int) (n % capacity);
+            visitor.visit(timestamps[i], objectiveIds[i], removes[i], tables[i],
+                          REASONS[reasons[i]], hwMatches[i], latencies[i]);
+        }
+    }
+
+    /**
+     * Returns the number of decisions recorded since the creation of the history.
+     *
+     * @return number of decisions
+     */
+    public synchronized long recorded() {
+        return recorded;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Dumps the last placement decisions taken by the HP pipeline of a device.
+ */
+@Command(scope = "onos", name = "hp-placements",
+        description = "Dumps the last placement decisions of the HP pipeline of a device")
+public class HPPlacementHistoryCommand extends AbstractShellCommand {
+
+    private static final String FORMAT = "%s objective=%d op=%s table=%d reason=%s hwMatches=%d latency=%dus";
+
+    @Argument(index = 0, name = "uri", description = "Device ID",
+            required = true, multiValued = false)
+    String uri = null;
+
+    @Override
+    protected void execute() {
+        HPPlacementHistory history = HPPlacementHistory.get(DeviceId.deviceId(uri));
+        if (history == null) {
+            print("No HP pipeline for device %s", uri);
+            return;
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        history.forEach((timestamp, objectiveId, remove, table, reason, hwMatches, latencyNanos) ->
+                print(FORMAT, dateFormat.format(new Date(timestamp)), objectiveId, remove ? "REMOVE" : "ADD",
+                      table, reason, hwMatches, latencyNanos / 1000));
+        print("%d decisions recorded, last %d kept", history.recorded(), history.capacity());
+    }
+}
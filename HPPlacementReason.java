@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+/**
+ *  Reason of the table chosen for a ForwardingObjective.
+ *
+ *  HARDWARE means that the objective is installed in HP_HARDWARE_TABLE, all the other
+ *  values identify the first feature that forces the installation in HP_SOFTWARE_TABLE.
+ */
+
+public enum HPPlacementReason {
+
+    /** All the features of the objective are supported in hardware. */
+    HARDWARE,
+    /** A criterion is not supported in hardware. */
+    CRITERION,
+    /** The value of the ETH_TYPE criterion is not supported in hardware. */
+    ETH_TYPE,
+    /** IN_PORT is matched in hardware only together with ETH_TYPE (V1 modules). */
+    IN_PORT_WITHOUT_ETH_TYPE,
+    /** A criterion is not supported in hardware by the specific switch model. */
+    MODEL_CRITERION,
+    /** The treatment includes a CLEAR action. */
+    CLEAR_DEFERRED,
+    /** An instruction is not supported in hardware. */
+    INSTRUCTION,
+    /** The treatment outputs to the CONTROLLER port. */
+    CONTROLLER_OUTPUT,
+    /** An L2MODIFICATION subtype is not supported in hardware. */
+    L2MOD,
+    /** An L3MODIFICATION subtype is not supported in hardware. */
+    L3MOD,
+    /** An L4MODIFICATION subtype is not supported in hardware. */
+    L4MOD,
+    /** A referenced group is not installed on the device. */
+    GROUP_MISSING,
+    /** The type of a referenced group is not supported in hardware. */
+    GROUP_TYPE,
+    /** A referenced group has buckets with actions other than a single OUTPUT. */
+    GROUP_BUCKETS,
+    /** The objective is supported in hardware, but HP_HARDWARE_TABLE is full. */
+    TABLE_FULL,
+    /** Objectives of the same shape have been rejected by the device in HP_HARDWARE_TABLE. */
+    DEVICE_REJECTED;
+
+    /**
+     * Returns true if the objective is installed in the hardware table.
+     *
+     * @return boolean
+     */
+    public boolean isHardware() {
+        return this == HARDWARE;
+    }
+}
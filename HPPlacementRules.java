@@ -0,0 +1,389 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.core.GroupId;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.flow.instructions.L3ModificationInstruction;
+import org.onosproject.net.flow.instructions.L4ModificationInstruction;
+import org.onosproject.net.group.Group;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ *  Hardware constraints of an HP module, compiled into a placement evaluator.
+ *
+ *  The constraints are declared as data with a Builder: the features supported in hardware
+ *  and the model quirks (allowed or denied ETH_TYPE values, criteria requiring other criteria,
+ *  criteria denied on specific hardware versions). They are compiled once per device at
+ *  pipeline init(): quirks depending on the hardware version are resolved at that time,
+ *  ETH_TYPE values become sorted arrays and feature lists become EnumSets, so the evaluation
+ *  of an objective is a fixed sequence of subset tests on its HPObjectiveSignature.
+ *
+ *  Checks are evaluated in the following order and the first failing one gives the reason:
+ *  CRITERION, ETH_TYPE, criteria requirements, MODEL_CRITERION, CLEAR_DEFERRED, INSTRUCTION,
+ *  CONTROLLER_OUTPUT, L2MOD, L3MOD, L4MOD, GROUP_MISSING/GROUP_TYPE/GROUP_BUCKETS.
+ */
+
+public final class HPPlacementRules {
+
+    private final EnumSet<Criterion.Type> criteria;
+    private final int[] allowedEthTypes;
+    private final int[] deniedEthTypes;
+    private final List<Requirement> requirements;
+    private final EnumSet<Criterion.Type> modelCriteria;
+    private final boolean clearInSoftware;
+    private final EnumSet<Instruction.Type> instructions;
+    private final boolean controllerInSoftware;
+    private final EnumSet<L2ModificationInstruction.L2SubType> l2mod;
+    private final EnumSet<L3ModificationInstruction.L3SubType> l3mod;
+    private final EnumSet<L4ModificationInstruction.L4SubType> l4mod;
+    private final EnumSet<Group.Type> groups;
+
+    // A criterion supported in hardware only together with other criteria
+    private static final class Requirement {
+        private final Criterion.Type criterion;
+        private final EnumSet<Criterion.Type> required;
+        private final HPPlacementReason reason;
+
+        private Requirement(Criterion.Type criterion, EnumSet<Criterion.Type> required, HPPlacementReason reason) {
+            this.criterion = criterion;
+            this.required = required;
+            this.reason = reason;
+        }
+    }
+
+    // A criterion denied in hardware on the models whose hardware version contains a given string
+    private static final class ModelQuirk {
+        private final String hwVersion;
+        private final Criterion.Type criterion;
+
+        private ModelQuirk(String hwVersion, Criterion.Type criterion) {
+            this.hwVersion = hwVersion;
+            this.criterion = criterion;
+        }
+    }
+
+    private HPPlacementRules(Builder builder, String hwVersion) {
+        criteria = copy(builder.criteria, Criterion.Type.class);
+        allowedEthTypes = sorted(builder.allowedEthTypes);
+        deniedEthTypes = sorted(builder.deniedEthTypes);
+        requirements = new ArrayList<>(builder.requirements);
+        clearInSoftware = builder.clearInSoftware;
+        instructions = copy(builder.instructions, Instruction.Type.class);
+        controllerInSoftware = builder.controllerInSoftware;
+        l2mod = copy(builder.l2mod, L2ModificationInstruction.L2SubType.class);
+        l3mod = copy(builder.l3mod, L3ModificationInstruction.L3SubType.class);
+        l4mod = copy(builder.l4mod, L4ModificationInstruction.L4SubType.class);
+        groups = copy(builder.groups, Group.Type.class);
+
+        modelCriteria = EnumSet.noneOf(Criterion.Type.class);
+        for (ModelQuirk quirk : builder.modelQuirks) {
+            if (hwVersion != null && hwVersion.contains(quirk.hwVersion)) {
+                modelCriteria.add(quirk.criterion);
+            }
+        }
+    }
+
+    // Null sets are not checked
+    private static <E extends Enum<E>> EnumSet<E> copy(Set<E> set, Class<E> type) {
+        if (set == null) {
+            return null;
+        }
+        EnumSet<E> copy = EnumSet.noneOf(type);
+        copy.addAll(set);
+        return copy;
+    }
+
+    private static int[] sorted(List<Integer> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        int[] array = values.stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Returns a new builder.
+     *
+     * @return builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Evaluates the placement of an objective.
+     *
+     * @param sig the signature of the objective
+     * @param installedGroups returns the shape of an installed group, null if the group is not installed
+     * @return HARDWARE, or the first constraint that requires the software table
+     */
+    public HPPlacementReason evaluate(HPObjectiveSignature sig,
+                                      Function<GroupId, HPGroupIndex.GroupShape> installedGroups) {
+        EnumSet<Criterion.Type> used = sig.criteria();
+
+        if (criteria != null && !criteria.containsAll(used)) {
+            return HPPlacementReason.CRITERION;
+        }
+
+        if (sig.ethType() != HPObjectiveSignature.NO_ETH_TYPE) {
+            if (allowedEthTypes != null && Arrays.binarySearch(allowedEthTypes, sig.ethType()) < 0) {
+                return HPPlacementReason.ETH_TYPE;
+            }
+            if (deniedEthTypes != null && Arrays.binarySearch(deniedEthTypes, sig.ethType()) >= 0) {
+                return HPPlacementReason.ETH_TYPE;
+            }
+        }
+
+        for (Requirement requirement : requirements) {
+            if (used.contains(requirement.criterion) && !used.containsAll(requirement.required)) {
+                return requirement.reason;
+            }
+        }
+
+        for (Criterion.Type criterion : modelCriteria) {
+            if (used.contains(criterion)) {
+                return HPPlacementReason.MODEL_CRITERION;
+            }
+        }
+
+        if (clearInSoftware && sig.clearedDeferred()) {
+            return HPPlacementReason.CLEAR_DEFERRED;
+        }
+
+        if (instructions != null && !instructions.containsAll(sig.instructions())) {
+            return HPPlacementReason.INSTRUCTION;
+        }
+
+        if (controllerInSoftware && sig.outputToController()) {
+            return HPPlacementReason.CONTROLLER_OUTPUT;
+        }
+
+        if (l2mod != null && !l2mod.containsAll(sig.l2mod())) {
+            return HPPlacementReason.L2MOD;
+        }
+        if (l3mod != null && !l3mod.containsAll(sig.l3mod())) {
+            return HPPlacementReason.L3MOD;
+        }
+        if (l4mod != null && !l4mod.containsAll(sig.l4mod())) {
+            return HPPlacementReason.L4MOD;
+        }
+
+        if (groups != null) {
+            for (GroupId groupId : sig.groups()) {
+                HPGroupIndex.GroupShape group = installedGroups.apply(groupId);
+
+                if (group == null) {
+                    return HPPlacementReason.GROUP_MISSING;
+                }
+                if (!groups.contains(group.type())) {
+                    return HPPlacementReason.GROUP_TYPE;
+                }
+                if (!group.singleOutputBuckets()) {
+                    return HPPlacementReason.GROUP_BUCKETS;
+                }
+            }
+        }
+
+        return HPPlacementReason.HARDWARE;
+    }
+
+    /**
+     * Builder of the hardware constraints of a module.
+     * Features whose set is not given are not checked.
+     */
+    public static final class Builder {
+
+        private Set<Criterion.Type> criteria;
+        private final List<Integer> allowedEthTypes = new ArrayList<>();
+        private final List<Integer> deniedEthTypes = new ArrayList<>();
+        private final List<Requirement> requirements = new ArrayList<>();
+        private final List<ModelQuirk> modelQuirks = new ArrayList<>();
+        private boolean clearInSoftware = false;
+        private Set<Instruction.Type> instructions;
+        private boolean controllerInSoftware = true;
+        private Set<L2ModificationInstruction.L2SubType> l2mod;
+        private Set<L3ModificationInstruction.L3SubType> l3mod;
+        private Set<L4ModificationInstruction.L4SubType> l4mod;
+        private Set<Group.Type> groups;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the criteria supported in hardware.
+         *
+         * @param hardwareCriteria the criteria
+         * @return this builder
+         */
+        public Builder criteria(Set<Criterion.Type> hardwareCriteria) {
+            this.criteria = hardwareCriteria;
+            return this;
+        }
+
+        /**
+         * Restricts the ETH_TYPE values matched in hardware to the given ones.
+         *
+         * @param ethTypes the allowed values, e.g. Ethernet.TYPE_IPV4
+         * @return this builder
+         */
+        public Builder ethTypeOnlyIn(short... ethTypes) {
+            for (short ethType : ethTypes) {
+                allowedEthTypes.add(ethType & 0xFFFF);
+            }
+            return this;
+        }
+
+        /**
+         * Excludes the given ETH_TYPE values from the hardware match.
+         *
+         * @param ethTypes the denied values, e.g. Ethernet.TYPE_VLAN
+         * @return this builder
+         */
+        public Builder ethTypeNotIn(short... ethTypes) {
+            for (short ethType : ethTypes) {
+                deniedEthTypes.add(ethType & 0xFFFF);
+            }
+            return this;
+        }
+
+        /**
+         * Declares that a criterion is matched in hardware only together with other criteria.
+         *
+         * @param criterion the criterion
+         * @param required the criteria that must be matched as well
+         * @param reason reason of the placement in software if the requirement is not met
+         * @return this builder
+         */
+        public Builder requires(Criterion.Type criterion, Set<Criterion.Type> required, HPPlacementReason reason) {
+            EnumSet<Criterion.Type> copy = EnumSet.noneOf(Criterion.Type.class);
+            copy.addAll(required);
+            requirements.add(new Requirement(criterion, copy, reason));
+            return this;
+        }
+
+        /**
+         * Declares that a criterion is not matched in hardware by the models whose
+         * hardware version contains the given string.
+         *
+         * @param hwVersion part of the hardware version, e.g. "2920"
+         * @param criterion the criterion
+         * @return this builder
+         */
+        public Builder modelCriterionInSoftware(String hwVersion, Criterion.Type criterion) {
+            modelQuirks.add(new ModelQuirk(hwVersion, criterion));
+            return this;
+        }
+
+        /**
+         * Declares that the CLEAR action is only supported in software.
+         *
+         * @return this builder
+         */
+        public Builder clearInSoftware() {
+            this.clearInSoftware = true;
+            return this;
+        }
+
+        /**
+         * Sets the instructions supported in hardware.
+         *
+         * @param hardwareInstructions the instructions
+         * @return this builder
+         */
+        public Builder instructions(Set<Instruction.Type> hardwareInstructions) {
+            this.instructions = hardwareInstructions;
+            return this;
+        }
+
+        /**
+         * Sets whether the output to CONTROLLER requires the software table, true by default
+         * since the OpenFlow header has to be added by the switch CPU.
+         *
+         * @param inSoftware boolean
+         * @return this builder
+         */
+        public Builder controllerInSoftware(boolean inSoftware) {
+            this.controllerInSoftware = inSoftware;
+            return this;
+        }
+
+        /**
+         * Sets the L2MODIFICATION subtypes supported in hardware.
+         *
+         * @param hardwareL2mod the subtypes
+         * @return this builder
+         */
+        public Builder l2mod(Set<L2ModificationInstruction.L2SubType> hardwareL2mod) {
+            this.l2mod = hardwareL2mod;
+            return this;
+        }
+
+        /**
+         * Sets the L3MODIFICATION subtypes supported in hardware.
+         *
+         * @param hardwareL3mod the subtypes
+         * @return this builder
+         */
+        public Builder l3mod(Set<L3ModificationInstruction.L3SubType> hardwareL3mod) {
+            this.l3mod = hardwareL3mod;
+            return this;
+        }
+
+        /**
+         * Sets the L4MODIFICATION subtypes supported in hardware.
+         *
+         * @param hardwareL4mod the subtypes
+         * @return this builder
+         */
+        public Builder l4mod(Set<L4ModificationInstruction.L4SubType> hardwareL4mod) {
+            this.l4mod = hardwareL4mod;
+            return this;
+        }
+
+        /**
+         * Sets the group types supported in hardware. Referenced groups must also be
+         * installed and have buckets with one and only one OUTPUT action.
+         *
+         * @param hardwareGroups the group types
+         * @return this builder
+         */
+        public Builder groups(Set<Group.Type> hardwareGroups) {
+            this.groups = hardwareGroups;
+            return this;
+        }
+
+        /**
+         * Compiles the constraints for a device.
+         *
+         * @param hwVersion hardware version of the device, used to resolve model quirks
+         * @return the compiled rules
+         */
+        public HPPlacementRules build(String hwVersion) {
+            return new HPPlacementRules(this, hwVersion);
+        }
+    }
+}
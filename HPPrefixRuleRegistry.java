@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.net.flow.FlowRule;
+
+/**
+ *  Reference-counted registry of the prefix rules installed in HP_HARDWARE_TABLE
+ *  to redirect traffic to HP_SOFTWARE_TABLE.
+ *
+ *  Software rules whose hardware-matchable fields are the same share a single prefix
+ *  rule, identified by its FlowId (i.e. by application, selector, priority and table).
+ *  A prefix rule has to be installed only for its first dependent and removed only
+ *  when its last dependent goes away.
+ *
+ *  Entries are keyed by FlowId.value() and removed when the software rule is removed,
+ *  when a rule expires and when the device disconnects, so the registry does not grow
+ *  beyond the rules actually installed.
+ *
+ *  The registry is not thread-safe: it is only used on the lane of its device.
+ */
+
+public final class HPPrefixRuleRegistry {
+
+    // Estimate in bytes of an Entry: object header, reference and int fields
+    private static final int ENTRY_FOOTPRINT = 24;
+
+    // Prefix rule and number of software rules depending on it
+    private static final class Entry {
+        private final FlowRule rule;
+        private int references;
+
+        private Entry(FlowRule rule) {
+            this.rule = rule;
+        }
+    }
+
+    private final HPLongMap<Entry> prefixes = new HPLongMap<>();
+    private final HPLongMap<Entry> dependents = new HPLongMap<>();
+
+    /**
+     * Registers a software rule as dependent of a prefix rule.
+     *
+     * @param swRule the rule installed in the software table
+     * @param prefix the prefix rule built for the software rule
+     * @return true if the prefix rule is not installed yet and has to be installed
+     */
+    public boolean acquire(FlowRule swRule, FlowRule prefix) {
+        long prefixId = prefix.id().value();
+
+        Entry previous = dependents.get(swRule.id().value());
+        if (previous != null && previous.rule.id().value() == prefixId && prefixes.get(prefixId) == previous) {
+            // Same objective added again, it already holds a reference
+            return false;
+        }
+        if (previous != null) {
+            release(swRule);
+        }
+
+        Entry entry = prefixes.get(prefixId);
+        if (entry == null) {
+            entry = new Entry(prefix);
+            prefixes.put(prefixId, entry);
+        }
+        entry.references++;
+        dependents.put(swRule.id().value(), entry);
+        return entry.references == 1;
+    }
+
+    /**
+     * Unregisters a software rule.
+     *
+     * @param swRule the rule installed in the software table
+     * @return the prefix rule to be removed, null if it is still needed or if the rule had no prefix
+     */
+    public FlowRule release(FlowRule swRule) {
+        Entry entry = dependents.remove(swRule.id().value());
+        if (entry == null || --entry.references > 0) {
+            return null;
+        }
+
+        // The prefix may already be gone, e.g. expired, and replaced by a new entry
+        long prefixId = entry.rule.id().value();
+        if (prefixes.get(prefixId) != entry) {
+            return null;
+        }
+        prefixes.remove(prefixId);
+        return entry.rule;
+    }
+
+    /**
+     * Returns the prefix rule of a software rule.
+     *
+     * @param swRule the rule installed in the software table
+     * @return the prefix rule, null if the rule has no prefix
+     */
+    public FlowRule prefixOf(FlowRule swRule) {
+        Entry entry = dependents.get(swRule.id().value());
+        return entry == null ? null : entry.rule;
+    }
+
+    /**
+     * Updates the registry after a rule has been removed from the device,
+     * e.g. because of an idle or hard timeout.
+     *
+     * @param rule the removed rule
+     * @return the prefix rule to be removed, null if none
+     */
+    public FlowRule ruleRemoved(FlowRule rule) {
+        if (dependents.get(rule.id().value()) != null) {
+            return release(rule);
+        }
+
+        // Only temporary prefixes can expire, removals of permanent ones are issued by the driver
+        Entry entry = prefixes.get(rule.id().value());
+        if (entry != null && !entry.rule.isPermanent()) {
+            // Dependents still hold the entry, a new prefix will be installed by the next acquire
+            prefixes.remove(rule.id().value());
+        }
+        return null;
+    }
+
+    /**
+     * Removes all the entries, e.g. when the device disconnects.
+     */
+    public void clear() {
+        prefixes.clear();
+        dependents.clear();
+    }
+
+    /**
+     * Returns the number of software rules depending on a prefix rule.
+     *
+     * @param prefix the prefix rule
+     * @return number of dependents, 0 if the rule is not registered
+     */
+    public int references(FlowRule prefix) {
+        Entry entry = prefixes.get(prefix.id().value());
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Returns the number of distinct prefix rules.
+     *
+     * @return number of prefix rules
+     */
+    public int size() {
+        return prefixes.size();
+    }
+
+    /**
+     * Returns the number of software rules having a prefix rule.
+     *
+     * @return number of dependents
+     */
+    public int dependents() {
+        return dependents.size();
+    }
+
+    /**
+     * Returns an estimate in bytes of the memory used by the registry, excluding the rules.
+     *
+     * @return number of bytes
+     */
+    public long footprint() {
+        return prefixes.footprint() + dependents.footprint() + (long) prefixes.size() * ENTRY_FOOTPRINT;
+    }
+}
@@ -16,28 +16,98 @@
 
 package org.onosproject.drivers.hp;
 
+import org.onlab.osgi.DefaultServiceDirectory;
+import org.onlab.osgi.ServiceNotFoundException;
+import org.onosproject.openflow.controller.Dpid;
+import org.onosproject.openflow.controller.OpenFlowController;
+import org.onosproject.openflow.controller.OpenFlowMessageListener;
 import org.onosproject.openflow.controller.driver.AbstractOpenFlowSwitch;
 import org.onosproject.openflow.controller.driver.SwitchDriverSubHandshakeAlreadyStarted;
 import org.onosproject.openflow.controller.driver.SwitchDriverSubHandshakeCompleted;
 import org.onosproject.openflow.controller.driver.SwitchDriverSubHandshakeNotStarted;
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
+import org.projectfloodlight.openflow.protocol.OFFlowStatsEntry;
+import org.projectfloodlight.openflow.protocol.OFFlowStatsReply;
+import org.projectfloodlight.openflow.protocol.OFFlowStatsRequest;
+import org.projectfloodlight.openflow.protocol.OFStatsReply;
+import org.projectfloodlight.openflow.protocol.OFStatsReplyFlags;
+import org.projectfloodlight.openflow.protocol.OFStatsType;
+import org.projectfloodlight.openflow.protocol.OFTableFeatures;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturesStatsRequest;
 import org.projectfloodlight.openflow.protocol.OFTableFeaturesStatsReply;
 import org.projectfloodlight.openflow.protocol.OFGroupMod;
 import org.projectfloodlight.openflow.protocol.OFGroupType;
 import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFType;
+import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.types.OFGroup;
+import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.TableId;
+import org.projectfloodlight.openflow.types.U64;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * HP switch handshaker.
  * Possibly compliant with all HP OF switches but tested only with HP3800.
+ *
+ * By default all the flows and groups of the switch are deleted during the handshake.
+ * With the driver property warmReconnect set, the flow tables are dumped instead and only
+ * the flows not installed by the HP pipeline are deleted: every rule of the pipeline (forwarding
+ * rules, their prefix rules, nextId forwarding rules, filtering rules and table-miss rules) carries
+ * a cookie allocated by HPCookieAllocator and keeps forwarding until ONOS reconciles it.
+ * Table-miss flows without such a cookie, installed by former versions of the driver, are kept too.
+ * Groups are not dumped: on connection the ONOS group subsystem audits the groups of the device
+ * against its store, removing the groups it does not know and adding or modifying the missing
+ * ones, which is what a reconciliation here would do.
+ * The pipeline initialized after the handshake rebuilds its state from the flow store.
+ *
+ * TABLE_FEATURES may be split by the switch in several multipart replies: each part is fed
+ * to HPFeatures as it arrives. With the driver property earlyTableFeatures set, the handshake
+ * completes as soon as the description of HP_HARDWARE_TABLE has been received; the parts
+ * received afterwards are dispatched by the OpenFlow controller, and fed to HPFeatures by an
+ * OpenFlowMessageListener until the last one, which stores the complete description in the cache.
+ *
+ * With the driver property capabilityCacheFile set, complete TABLE_FEATURES descriptions are
+ * stored in an HPCapabilityCache by hardware and software description of the switch: switches
+ * of a known model and firmware restore their features from the cache and skip the request.
  */
 public class HPSwitchHandshaker extends AbstractOpenFlowSwitch {
 
+    /**
+     * Driver property: keep the flows installed by the pipeline across reconnections.
+     */
+    public static final String WARM_RECONNECT = "warmReconnect";
+
+    /**
+     * Driver property: complete the handshake once HP_HARDWARE_TABLE has been described,
+     * without waiting for the description of the following tables.
+     */
+    public static final String EARLY_TABLE_FEATURES = "earlyTableFeatures";
+
+    /**
+     * Driver property: path of the file of the HPCapabilityCache, no cache if missing.
+     */
+    public static final String CAPABILITY_CACHE_FILE = "capabilityCacheFile";
+
+    // Listeners of the TABLE_FEATURES parts received after an early completion of the handshake
+    private static final ConcurrentMap<Dpid, LateTableFeatures> LATE_TABLE_FEATURES = new ConcurrentHashMap<>();
+
     private AtomicBoolean handshakeComplete = new AtomicBoolean(false);
+    private boolean warmReconnect;
+    private boolean earlyTableFeatures;
+    private boolean hardwareTableReceived;
+    private int featureParts;
+    private HPCapabilityCache capabilityCache;
+    private boolean featuresReceived;
+    private boolean flowsReceived;
+    private int flowsKept;
+    private int flowsDeleted;
 
 
     @Override
@@ -51,24 +121,56 @@ public class HPSwitchHandshaker extends AbstractOpenFlowSwitch {
             throw new SwitchDriverSubHandshakeAlreadyStarted();
         }
         startDriverHandshakeCalled = true;
-        OFFlowMod fm = factory().buildFlowDelete()
-                .setTableId(TableId.ALL)
-                .setOutGroup(OFGroup.ANY)
-                .build();
+        // Parts of the TABLE_FEATURES of a previous connection are no longer expected
+        stopLateTableFeatures();
+        warmReconnect = driverFlag(WARM_RECONNECT);
+        earlyTableFeatures = driverFlag(EARLY_TABLE_FEATURES);
+        String cacheFile = data() != null ? data().driver().getProperty(CAPABILITY_CACHE_FILE) : null;
+        if (cacheFile != null && !cacheFile.trim().isEmpty()) {
+            capabilityCache = HPCapabilityCache.open(Paths.get(cacheFile.trim()));
+        }
 
-        sendHandshakeMessage(fm);
+        if (warmReconnect) {
+            // Dump the flow tables, flows not installed by the pipeline are deleted on reply
+            OFFlowStatsRequest fsr = factory().buildFlowStatsRequest()
+                    .setTableId(TableId.ALL)
+                    .setOutPort(OFPort.ANY)
+                    .setOutGroup(OFGroup.ANY)
+                    .setMatch(factory().matchWildcardAll())
+                    .build();
+            sendHandshakeMessage(fsr);
+        } else {
+            OFFlowMod fm = factory().buildFlowDelete()
+                    .setTableId(TableId.ALL)
+                    .setOutGroup(OFGroup.ANY)
+                    .build();
 
-        // Send TABLE_FEATURES multipart request
-        OFTableFeaturesStatsRequest ofm = factory().buildTableFeaturesStatsRequest().build();
-        sendHandshakeMessage(ofm);
+            sendHandshakeMessage(fm);
+            flowsReceived = true;
+        }
+
+        if (capabilityCache != null && capabilityCache.restore(hardwareDescription(), softwareDescription(),
+                                                               HPFeatures.getInstance(getDpid()))) {
+            log.info("HP Driver Handshake: features of {} restored from capability cache, skipping TABLE_FEATURES",
+                     super.getStringId());
+            featuresReceived = true;
+        } else {
+            // Send TABLE_FEATURES multipart request
+            OFTableFeaturesStatsRequest ofm = factory().buildTableFeaturesStatsRequest().build();
+            sendHandshakeMessage(ofm);
+        }
 
-        OFGroupMod gm = factory().buildGroupDelete()
-                .setGroup(OFGroup.ALL)
-                .setGroupType(OFGroupType.ALL)
-                .build();
+        if (!warmReconnect) {
+            OFGroupMod gm = factory().buildGroupDelete()
+                    .setGroup(OFGroup.ALL)
+                    .setGroupType(OFGroupType.ALL)
+                    .build();
 
-        sendHandshakeMessage(gm);
+            sendHandshakeMessage(gm);
+        }
 
+        // No reply is awaited with cached features and without warm reconnect
+        handshakeComplete.set(featuresReceived && flowsReceived);
     }
 
     @Override
@@ -90,18 +192,23 @@ public class HPSwitchHandshaker extends AbstractOpenFlowSwitch {
 
         switch (m.getType()) {
             case STATS_REPLY:
-                // Process TABLE_FEATURES multipart reply
-                try {
-                    OFTableFeaturesStatsReply r = (OFTableFeaturesStatsReply) m;
-                    HPFeatures hpfeatures = HPFeatures.getInstance(getDpid());
-                    hpfeatures.extractCriteriaFromTableFeatures(r.getEntries());
-                    log.info("HP Driver Handshake: finished reading features from TABLE_FEATURES, UUID {}",
-                            hpfeatures.getIdentifier().toString());
-                } catch (ClassCastException e) {
-                    log.warn("HP Driver Handshake: received STATS_REPLY msg, but not a TABLE_FEATURE one");
+                OFStatsReply reply = (OFStatsReply) m;
+                switch (reply.getStatsType()) {
+                    case TABLE_FEATURES:
+                        processTableFeatures((OFTableFeaturesStatsReply) m);
+                        break;
+                    case FLOW:
+                        reconcileFlows((OFFlowStatsReply) m);
+                        break;
+                    default:
+                        // Stray replies, e.g. to requests of other modules, do not end the handshake
+                        log.warn("HP Driver Handshake: ignoring STATS_REPLY msg of type {}", reply.getStatsType());
+                        return;
+                }
+                if (featuresReceived && flowsReceived) {
+                    handshakeComplete.set(true);
+                    log.info("Handshake with device {} ended", super.getStringId());
                 }
-                handshakeComplete.set(true);
-                log.info("Handshake with device {} ended", super.getStringId());
                 break;
             default:
                 log.warn("HP Driver Handshake - Reply message not handled");
@@ -110,4 +217,140 @@ public class HPSwitchHandshaker extends AbstractOpenFlowSwitch {
 
     }
 
+    /**
+     * Feeds a part of the TABLE_FEATURES multipart reply to HPFeatures.
+     *
+     * @param reply a part of the TABLE_FEATURES reply
+     */
+    private void processTableFeatures(OFTableFeaturesStatsReply reply) {
+        HPFeatures hpfeatures = HPFeatures.getInstance(getDpid());
+        hpfeatures.extractCriteriaFromTableFeatures(reply.getEntries());
+        featureParts++;
+
+        for (OFTableFeatures tableFeatures : reply.getEntries()) {
+            if (tableFeatures.getTableId().getValue() == AbstractHPPipeline.HP_HARDWARE_TABLE) {
+                hardwareTableReceived = true;
+            }
+        }
+
+        if (!reply.getFlags().contains(OFStatsReplyFlags.REPLY_MORE)) {
+            log.info("HP Driver Handshake: finished reading features from TABLE_FEATURES ({} parts), UUID {}",
+                     featureParts, hpfeatures.getIdentifier().toString());
+            if (capabilityCache != null) {
+                capabilityCache.store(hardwareDescription(), softwareDescription(), hpfeatures);
+            }
+            featuresReceived = true;
+            stopLateTableFeatures();
+        } else if (earlyTableFeatures && hardwareTableReceived && !featuresReceived) {
+            log.info("HP Driver Handshake: HP_HARDWARE_TABLE described after {} TABLE_FEATURES parts, UUID {}",
+                     featureParts, hpfeatures.getIdentifier().toString());
+            startLateTableFeatures();
+            featuresReceived = true;
+        }
+    }
+
+    /**
+     * Listens to the TABLE_FEATURES parts that will be received after the handshake.
+     */
+    private void startLateTableFeatures() {
+        OpenFlowController controller;
+        try {
+            controller = DefaultServiceDirectory.getService(OpenFlowController.class);
+        } catch (ServiceNotFoundException e) {
+            log.warn("HP Driver Handshake: description of {} is partial, the TABLE_FEATURES parts received " +
+                             "after the handshake will be neither processed nor cached", super.getStringId());
+            return;
+        }
+        LateTableFeatures listener = new LateTableFeatures(controller);
+        LateTableFeatures previous = LATE_TABLE_FEATURES.put(getDpid(), listener);
+        if (previous != null) {
+            previous.stop();
+        }
+        controller.addMessageListener(listener);
+    }
+
+    /**
+     * Stops listening to the TABLE_FEATURES parts of the switch, if listening.
+     */
+    private void stopLateTableFeatures() {
+        LateTableFeatures listener = LATE_TABLE_FEATURES.remove(getDpid());
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    /**
+     * Deletes the flows of a FLOW multipart reply that have not been installed by the pipeline.
+     *
+     * @param reply a part of the dump of the flow tables
+     */
+    private void reconcileFlows(OFFlowStatsReply reply) {
+        for (OFFlowStatsEntry entry : reply.getEntries()) {
+            if (isPipelineFlow(entry)) {
+                flowsKept++;
+                continue;
+            }
+            OFFlowMod fm = factory().buildFlowDeleteStrict()
+                    .setTableId(entry.getTableId())
+                    .setPriority(entry.getPriority())
+                    .setMatch(entry.getMatch())
+                    .setCookie(entry.getCookie())
+                    .setCookieMask(U64.NO_MASK)
+                    .setOutPort(OFPort.ANY)
+                    .setOutGroup(OFGroup.ANY)
+                    .build();
+            sendHandshakeMessage(fm);
+            flowsDeleted++;
+        }
+
+        if (!reply.getFlags().contains(OFStatsReplyFlags.REPLY_MORE)) {
+            flowsReceived = true;
+            log.info("HP Driver Handshake: warm reconnect of {}, kept {} flows, deleted {} flows",
+                     super.getStringId(), flowsKept, flowsDeleted);
+        }
+    }
+
+    // Feeds the TABLE_FEATURES parts dispatched by the controller after the handshake
+    private final class LateTableFeatures implements OpenFlowMessageListener {
+
+        private final OpenFlowController controller;
+
+        private LateTableFeatures(OpenFlowController controller) {
+            this.controller = controller;
+        }
+
+        @Override
+        public void handleIncomingMessage(Dpid dpid, OFMessage msg) {
+            if (dpid.equals(getDpid()) && msg.getType() == OFType.STATS_REPLY
+                    && ((OFStatsReply) msg).getStatsType() == OFStatsType.TABLE_FEATURES) {
+                processTableFeatures((OFTableFeaturesStatsReply) msg);
+            }
+        }
+
+        @Override
+        public void handleOutgoingMessage(Dpid dpid, List<OFMessage> msgs) {
+        }
+
+        private void stop() {
+            controller.removeMessageListener(this);
+        }
+    }
+
+    // Reads a boolean property of the driver
+    private boolean driverFlag(String name) {
+        String value = data() != null ? data().driver().getProperty(name) : null;
+        return Boolean.parseBoolean(value);
+    }
+
+    // Flows with a cookie allocated by the pipeline, or table-miss flows of tables 0 and 100 without one
+    private static boolean isPipelineFlow(OFFlowStatsEntry entry) {
+        if (HPCookieAllocator.isAllocated(entry.getCookie().getValue())) {
+            return true;
+        }
+        int table = entry.getTableId().getValue();
+        Match match = entry.getMatch();
+        return entry.getPriority() == 0 && !match.getMatchFields().iterator().hasNext()
+                && (table == AbstractHPPipeline.HP_TABLE_ZERO || table == AbstractHPPipeline.HP_HARDWARE_TABLE);
+    }
+
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.net.flow.criteria.Criterion;
+import org.projectfloodlight.openflow.protocol.OFActionType;
+import org.projectfloodlight.openflow.protocol.OFInstructionType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ *  Capabilities of a single flow table, as reported by its TABLE_FEATURES entry.
+ *
+ *  Unlike HPCapabilityProfile, which merges all the tables of a switch into supported
+ *  and hardware-supported features, the model keeps every property of the table apart:
+ *  max_entries, metadata match and write masks, next tables, and the instructions,
+ *  actions and fields of each property with their *_MISS variants.
+ */
+
+public final class HPTableModel {
+
+    /**
+     * Table feature properties listing action types.
+     */
+    public enum ActionProperty {
+        WRITE_ACTIONS, WRITE_ACTIONS_MISS, APPLY_ACTIONS, APPLY_ACTIONS_MISS
+    }
+
+    /**
+     * Table feature properties listing OXM fields.
+     */
+    public enum FieldProperty {
+        MATCH, WILDCARDS, WRITE_SETFIELD, WRITE_SETFIELD_MISS, APPLY_SETFIELD, APPLY_SETFIELD_MISS
+    }
+
+    private final int tableId;
+    private final long maxEntries;
+    private final long metadataMatch;
+    private final long metadataWrite;
+    private final Set<Integer> nextTables;
+    private final Set<Integer> nextTablesMiss;
+    private final Set<OFInstructionType> instructions;
+    private final Set<OFInstructionType> instructionsMiss;
+    private final Map<ActionProperty, Set<OFActionType>> actions;
+    private final Map<FieldProperty, Set<Criterion.Type>> fields;
+
+    private HPTableModel(Builder b) {
+        tableId = b.tableId;
+        maxEntries = b.maxEntries;
+        metadataMatch = b.metadataMatch;
+        metadataWrite = b.metadataWrite;
+        nextTables = Collections.unmodifiableSet(new TreeSet<>(b.nextTables));
+        nextTablesMiss = Collections.unmodifiableSet(new TreeSet<>(b.nextTablesMiss));
+        instructions = Collections.unmodifiableSet(EnumSet.copyOf(b.instructions));
+        instructionsMiss = Collections.unmodifiableSet(EnumSet.copyOf(b.instructionsMiss));
+
+        Map<ActionProperty, Set<OFActionType>> a = new EnumMap<>(ActionProperty.class);
+        b.actions.forEach((property, set) -> a.put(property, Collections.unmodifiableSet(EnumSet.copyOf(set))));
+        actions = Collections.unmodifiableMap(a);
+
+        Map<FieldProperty, Set<Criterion.Type>> f = new EnumMap<>(FieldProperty.class);
+        b.fields.forEach((property, set) -> f.put(property, Collections.unmodifiableSet(EnumSet.copyOf(set))));
+        fields = Collections.unmodifiableMap(f);
+    }
+
+    /**
+     * Returns a builder of the model of a table.
+     *
+     * @param tableId the table id
+     * @return the builder
+     */
+    public static Builder builder(int tableId) {
+        return new Builder(tableId);
+    }
+
+    public int tableId() {
+        return tableId;
+    }
+
+    public long maxEntries() {
+        return maxEntries;
+    }
+
+    public long metadataMatch() {
+        return metadataMatch;
+    }
+
+    public long metadataWrite() {
+        return metadataWrite;
+    }
+
+    public Set<Integer> nextTables() {
+        return nextTables;
+    }
+
+    public Set<Integer> nextTablesMiss() {
+        return nextTablesMiss;
+    }
+
+    public Set<OFInstructionType> instructions() {
+        return instructions;
+    }
+
+    public Set<OFInstructionType> instructionsMiss() {
+        return instructionsMiss;
+    }
+
+    /**
+     * Returns the action types listed by a property of the table.
+     *
+     * @param property the property
+     * @return the action types, empty if the property was not reported
+     */
+    public Set<OFActionType> actions(ActionProperty property) {
+        return actions.getOrDefault(property, Collections.emptySet());
+    }
+
+    /**
+     * Returns the criteria listed by a property of the table.
+     *
+     * @param property the property
+     * @return the criteria, empty if the property was not reported
+     */
+    public Set<Criterion.Type> fields(FieldProperty property) {
+        return fields.getOrDefault(property, Collections.emptySet());
+    }
+
+    /**
+     * Returns whether the table matches a criterion.
+     *
+     * @param criterion the criterion type
+     * @return true if the criterion is listed by the MATCH property
+     */
+    public boolean matches(Criterion.Type criterion) {
+        return fields(FieldProperty.MATCH).contains(criterion);
+    }
+
+    /**
+     * Returns whether the table can pass the packet to another table.
+     *
+     * @param table the next table id
+     * @return true if the table is listed by the NEXT_TABLES property
+     */
+    public boolean canGoTo(int table) {
+        return nextTables.contains(table);
+    }
+
+    @Override
+    public String toString() {
+        return "HPTableModel{tableId=" + tableId + ", maxEntries=" + maxEntries +
+                ", nextTables=" + nextTables + ", match=" + fields(FieldProperty.MATCH) + "}";
+    }
+
+    /**
+     * Mutable model of a table, filled while parsing its TABLE_FEATURES entry.
+     */
+    public static final class Builder {
+
+        private final int tableId;
+        private long maxEntries;
+        private long metadataMatch;
+        private long metadataWrite;
+        private final Set<Integer> nextTables = new TreeSet<>();
+        private final Set<Integer> nextTablesMiss = new TreeSet<>();
+        private final EnumSet<OFInstructionType> instructions = EnumSet.noneOf(OFInstructionType.class);
+        private final EnumSet<OFInstructionType> instructionsMiss = EnumSet.noneOf(OFInstructionType.class);
+        private final Map<ActionProperty, EnumSet<OFActionType>> actions = new EnumMap<>(ActionProperty.class);
+        private final Map<FieldProperty, EnumSet<Criterion.Type>> fields = new EnumMap<>(FieldProperty.class);
+
+        private Builder(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public Builder maxEntries(long maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        public Builder metadata(long match, long write) {
+            this.metadataMatch = match;
+            this.metadataWrite = write;
+            return this;
+        }
+
+        public Builder nextTable(int table, boolean miss) {
+            (miss ? nextTablesMiss : nextTables).add(table);
+            return this;
+        }
+
+        public Builder instruction(OFInstructionType type, boolean miss) {
+            (miss ? instructionsMiss : instructions).add(type);
+            return this;
+        }
+
+        public Builder action(ActionProperty property, OFActionType type) {
+            actions.computeIfAbsent(property, p -> EnumSet.noneOf(OFActionType.class)).add(type);
+            return this;
+        }
+
+        public Builder field(FieldProperty property, Criterion.Type type) {
+            fields.computeIfAbsent(property, p -> EnumSet.noneOf(Criterion.Type.class)).add(type);
+            return this;
+        }
+
+        public HPTableModel build() {
+            return new HPTableModel(this);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.net.flow.FlowRule;
+
+/**
+ *  Occupancy of a hardware (TCAM) table of a device.
+ *
+ *  The capacity is seeded from the max_entries reported by TABLE_FEATURES and the entries
+ *  are tracked by FlowId, from the installs and removes issued by the pipeline and from
+ *  the flow rule events of the device, so that each entry is counted once.
+ *  Objectives that would have been installed in the table while it is full can be spilled
+ *  to the software table: their hardware FlowId is remembered, so that the REMOVE of the
+ *  same objective is directed to the software table as well.
+ *  Updates are only issued on the lane of the device; the HPLongMaps holding the entries
+ *  let the metrics read the sizes from other threads.
+ */
+
+public final class HPTableOccupancy {
+
+    private final HPLongMap<Boolean> entries = new HPLongMap<>();
+    // FlowId of the rule built for this table -> FlowId of the rule installed in the software table
+    private final HPLongMap<Long> spilled = new HPLongMap<>();
+    private final HPLongMap<Long> spilledBy = new HPLongMap<>();
+    private final long headroom;
+    private volatile long capacity;
+
+    /**
+     * Creates the occupancy of a table.
+     *
+     * @param capacity maximum number of entries of the table, 0 if unknown
+     * @param headroom number of entries kept free
+     */
+    public HPTableOccupancy(long capacity, long headroom) {
+        this.capacity = capacity;
+        this.headroom = headroom;
+    }
+
+    /**
+     * Updates the capacity of the table, e.g. after TABLE_FEATURES have been read.
+     *
+     * @param capacity maximum number of entries of the table, 0 if unknown
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns true if no more entries should be installed in the table.
+     * A table of unknown capacity is never full.
+     *
+     * @return boolean
+     */
+    public boolean isFull() {
+        long max = capacity;
+        return max > 0 && entries.size() >= max - headroom;
+    }
+
+    /**
+     * Returns true if the rule is counted in the table.
+     *
+     * @param rule the rule
+     * @return boolean
+     */
+    public boolean contains(FlowRule rule) {
+        return entries.get(rule.id().value()) != null;
+    }
+
+    /**
+     * Counts a rule installed, or being installed, in the table.
+     *
+     * @param rule the rule
+     */
+    public void reserve(FlowRule rule) {
+        entries.put(rule.id().value(), Boolean.TRUE);
+    }
+
+    /**
+     * Stops counting a rule removed from the table, or whose installation failed.
+     *
+     * @param rule the rule
+     */
+    public void release(FlowRule rule) {
+        entries.remove(rule.id().value());
+    }
+
+    /**
+     * Remembers that a rule for the table has been installed in the software table.
+     *
+     * @param rule the rule built for this table
+     * @param swRule the rule installed in the software table instead
+     */
+    public void spill(FlowRule rule, FlowRule swRule) {
+        spill(rule.id().value(), swRule.id().value());
+    }
+
+    /**
+     * Remembers that a rule for the table has been installed in the software table.
+     *
+     * @param ruleId FlowId value of the rule built for this table
+     * @param swRuleId FlowId value of the rule installed in the software table instead
+     */
+    public void spill(long ruleId, long swRuleId) {
+        spilled.put(ruleId, swRuleId);
+        spilledBy.put(swRuleId, ruleId);
+    }
+
+    /**
+     * Returns true if a rule for the table has been installed in the software table.
+     *
+     * @param rule the rule built for this table
+     * @return boolean
+     */
+    public boolean isSpilled(FlowRule rule) {
+        return spilled.get(rule.id().value()) != null;
+    }
+
+    /**
+     * Forgets a spilled rule, e.g. when its objective is removed.
+     *
+     * @param rule the rule built for this table
+     * @return true if the rule had been spilled to the software table
+     */
+    public boolean unspill(FlowRule rule) {
+        Long swId = spilled.remove(rule.id().value());
+        if (swId == null) {
+            return false;
+        }
+        spilledBy.remove(swId);
+        return true;
+    }
+
+    /**
+     * Forgets the spilled rule replaced by a rule removed from the software table, e.g. expired.
+     *
+     * @param swRule the rule removed from the software table
+     */
+    public void softwareRuleRemoved(FlowRule swRule) {
+        Long id = spilledBy.remove(swRule.id().value());
+        if (id != null) {
+            spilled.remove(id);
+        }
+    }
+
+    /**
+     * Forgets all the entries, e.g. when the device disconnects.
+     */
+    public void clear() {
+        entries.clear();
+        spilled.clear();
+        spilledBy.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int spilledSize() {
+        return spilled.size();
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import com.google.common.collect.ImmutableList;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.metrics.MetricsService;
+import org.onlab.osgi.ServiceDirectory;
+import org.onlab.packet.ChassisId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.PipelinerContext;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flowobjective.FlowObjectiveStore;
+import org.onosproject.net.flowobjective.FlowObjectiveStoreDelegate;
+import org.onosproject.net.flowobjective.NextGroup;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.flowobjective.ObjectiveEvent;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.store.AbstractStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  In-memory stand-ins of the services used by the HP pipelines, for the benchmarks.
+ *
+ *  The flow rule service accepts every operation at once and reports the added and removed
+ *  rules to its listeners, as FlowRuleManager does once the device has confirmed them.
+ *  The group service holds groups of type ALL, already ADDED, with one OUTPUT bucket each.
+ *  Objectives built with completion() are counted when the pipeline reports their outcome.
+ */
+final class HPBenchmarkEnvironment implements PipelinerContext, ServiceDirectory {
+
+    static final DeviceId DEVICE_ID = DeviceId.deviceId("of:0000000000000001");
+    static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.onosproject.drivers.hp.benchmark");
+
+    private static final long AWAIT_TIMEOUT_SECONDS = 10;
+
+    private final Device device;
+    private final List<Group> groups = new ArrayList<>();
+    private final List<FlowRuleListener> flowRuleListeners = new CopyOnWriteArrayList<>();
+    private final List<DeviceListener> deviceListeners = new CopyOnWriteArrayList<>();
+    private final Map<Class<?>, Object> services = new HashMap<>();
+    private final ObjectiveStore store = new ObjectiveStore();
+    private final Completion completion = new Completion();
+
+    /**
+     * Creates the services of a device.
+     *
+     * @param hwVersion hardware version of the device
+     * @param groupCount number of groups of the device
+     */
+    HPBenchmarkEnvironment(String hwVersion, int groupCount) {
+        device = new DefaultDevice(new ProviderId("of", "org.onosproject.drivers.hp.benchmark"), DEVICE_ID,
+                                   Device.Type.SWITCH, "HP", hwVersion, "KA.16.04.0008", "bench",
+                                   new ChassisId(1));
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(group(i));
+        }
+
+        services.put(MetricsService.class, new MetricsManager());
+        services.put(CoreService.class, new Core());
+        services.put(FlowRuleService.class, new FlowRules());
+        services.put(GroupService.class, new Groups());
+        services.put(DeviceService.class, new Devices());
+    }
+
+    /**
+     * Initializes a pipeline on the device.
+     *
+     * @param pipeline the pipeline
+     */
+    void start(AbstractHPPipeline pipeline) {
+        // Started by HPDriverLoader in ONOS
+        HPDeviceLane.start();
+        pipeline.init(DEVICE_ID, this);
+    }
+
+    /**
+     * Removes the device, so that its pipeline releases its listeners and registrations,
+     * and stops the lanes.
+     */
+    void stop() {
+        DeviceEvent event = new DeviceEvent(DeviceEvent.Type.DEVICE_REMOVED, device);
+        deviceListeners.stream().filter(l -> l.isRelevant(event)).forEach(l -> l.event(event));
+        HPDeviceLane.stop();
+    }
+
+    /**
+     * Returns the id of a group of the device.
+     *
+     * @param index index of the group
+     * @return the group id
+     */
+    GroupId groupId(int index) {
+        return groups.get(index % groups.size()).id();
+    }
+
+    /**
+     * Returns the context counting the objectives completed by the pipeline.
+     *
+     * @return the completion context
+     */
+    Completion completion() {
+        return completion;
+    }
+
+    /**
+     * Returns the value of a counter registered by the pipeline of the device.
+     *
+     * @param name name of the counter
+     * @return the value of the counter, 0 if not registered
+     */
+    long counter(String name) {
+        MetricsService metrics = get(MetricsService.class);
+        return metrics.getCounters().entrySet().stream()
+                .filter(e -> e.getKey().endsWith("." + name))
+                .mapToLong(e -> e.getValue().getCount())
+                .sum();
+    }
+
+    /**
+     * Returns the FlowObjectiveStore stand-in.
+     *
+     * @return the store
+     */
+    ObjectiveStore objectiveStore() {
+        return store;
+    }
+
+    @Override
+    public ServiceDirectory directory() {
+        return this;
+    }
+
+    @Override
+    public FlowObjectiveStore store() {
+        return store;
+    }
+
+    @Override
+    public <T> T get(Class<T> serviceClass) {
+        return serviceClass.cast(services.get(serviceClass));
+    }
+
+    // Group of type ALL with one bucket, already installed on the device
+    private static Group group(int index) {
+        GroupBuckets buckets = new GroupBuckets(ImmutableList.of(DefaultGroupBucket.createAllGroupBucket(
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(index % 48 + 1)).build())));
+        DefaultGroup group = new DefaultGroup(new GroupId(index + 1), new DefaultGroupDescription(
+                DEVICE_ID, Group.Type.ALL, buckets,
+                new DefaultGroupKey(ByteBuffer.allocate(4).putInt(index).array()), index + 1, APP_ID));
+        group.setState(Group.GroupState.ADDED);
+        return group;
+    }
+
+    /**
+     * Counts the objectives whose outcome has been reported by the pipeline.
+     */
+    static final class Completion implements ObjectiveContext {
+
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        @Override
+        public void onSuccess(Objective objective) {
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Objective objective, ObjectiveError error) {
+            failed.incrementAndGet();
+            completed.incrementAndGet();
+        }
+
+        /**
+         * Returns the number of objectives completed so far.
+         *
+         * @return completed objectives, failed ones included
+         */
+        long completed() {
+            return completed.get();
+        }
+
+        /**
+         * Returns the number of objectives failed so far.
+         *
+         * @return failed objectives
+         */
+        long failed() {
+            return failed.get();
+        }
+
+        /**
+         * Waits until the given number of objectives have been completed.
+         *
+         * @param count number of completed objectives to wait for
+         */
+        void await(long count) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(AWAIT_TIMEOUT_SECONDS);
+            while (completed.get() < count) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("objectives not completed: " + (count - completed.get()));
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * FlowObjectiveStore kept in a map. Reads and writes of NextGroups wait for a configurable
+     * latency, standing for the round trip to the distributed store.
+     */
+    static final class ObjectiveStore extends AbstractStore<ObjectiveEvent, FlowObjectiveStoreDelegate>
+            implements FlowObjectiveStore {
+
+        private final Map<Integer, NextGroup> nextGroups = new ConcurrentHashMap<>();
+        private final AtomicInteger nextIds = new AtomicInteger();
+        private volatile long latencyNanos;
+
+        /**
+         * Sets the latency of the reads and writes of NextGroups.
+         *
+         * @param micros latency in microseconds, 0 for none
+         */
+        void setLatencyMicros(long micros) {
+            latencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+        }
+
+        @Override
+        public void putNextGroup(Integer nextId, NextGroup group) {
+            delay();
+            nextGroups.put(nextId, group);
+        }
+
+        @Override
+        public NextGroup getNextGroup(Integer nextId) {
+            delay();
+            return nextGroups.get(nextId);
+        }
+
+        @Override
+        public NextGroup removeNextGroup(Integer nextId) {
+            delay();
+            return nextGroups.remove(nextId);
+        }
+
+        @Override
+        public Map<Integer, NextGroup> getAllGroups() {
+            return Collections.unmodifiableMap(nextGroups);
+        }
+
+        @Override
+        public int allocateNextId() {
+            return nextIds.incrementAndGet();
+        }
+
+        // Spins rather than sleeps, sleeps shorter than the timer slack would be rounded up
+        private void delay() {
+            long latency = latencyNanos;
+            if (latency == 0) {
+                return;
+            }
+            long end = System.nanoTime() + latency;
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private final class Core extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(2, name);
+        }
+
+        @Override
+        public ApplicationId getAppId(Short id) {
+            return APP_ID;
+        }
+    }
+
+    private final class FlowRules extends FlowRuleServiceAdapter {
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            for (Set<FlowRuleOperation> stage : ops.stages()) {
+                for (FlowRuleOperation op : stage) {
+                    FlowRuleEvent event = new FlowRuleEvent(op.type() == FlowRuleOperation.Type.REMOVE
+                            ? FlowRuleEvent.Type.RULE_REMOVED : FlowRuleEvent.Type.RULE_ADDED, op.rule());
+                    flowRuleListeners.stream().filter(l -> l.isRelevant(event)).forEach(l -> l.event(event));
+                }
+            }
+            if (ops.callback() != null) {
+                ops.callback().onSuccess(ops);
+            }
+        }
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void addListener(FlowRuleListener listener) {
+            flowRuleListeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(FlowRuleListener listener) {
+            flowRuleListeners.remove(listener);
+        }
+    }
+
+    private final class Groups extends GroupServiceAdapter {
+        @Override
+        public Iterable<Group> getGroups(DeviceId deviceId) {
+            return groups;
+        }
+    }
+
+    private final class Devices extends DeviceServiceAdapter {
+        @Override
+        public Device getDevice(DeviceId deviceId) {
+            return device;
+        }
+
+        @Override
+        public boolean isAvailable(DeviceId deviceId) {
+            return true;
+        }
+
+        @Override
+        public void addListener(DeviceListener listener) {
+            deviceListeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(DeviceListener listener) {
+            deviceListeners.remove(listener);
+        }
+    }
+}
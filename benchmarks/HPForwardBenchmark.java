@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Placement and installation of ForwardingObjectives by forward() of HPPipelineV1, V2 and V3,
+ *  on the in-memory services of HPBenchmarkEnvironment.
+ *
+ *  Each invocation submits one objective and waits for the pipeline to report it installed or
+ *  removed: the objectives of the mix are added in a first pass and removed in the next one,
+ *  so the tables of the device hold at most OBJECTIVES rules.
+ *  Throughput mode reports ops/s, SampleTime mode the latency percentiles (p99 included),
+ *  and the allocation per objective is reported by running with -prof gc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HPForwardBenchmark {
+
+    /**
+     * Kinds of ForwardingObjectives installed by the benchmark.
+     */
+    public enum Mix {
+        /** Ethernet destination to an output port. */
+        L2,
+        /** IPv4 TCP 5-tuple to an output port. */
+        IPV4,
+        /** VLAN on an input port, rewritten and sent to an output port. */
+        VLAN,
+        /** ARP from an input port punted to the CONTROLLER. */
+        CONTROLLER,
+        /** Ethernet destination to a group of type ALL. */
+        GROUP,
+        /** The kinds above in turn. */
+        MIXED
+    }
+
+    private static final int OBJECTIVES = 1024;
+    private static final int GROUPS = 64;
+    private static final int PORTS = 48;
+    private static final int PRIORITY = 40000;
+
+    @Param({"V1", "V2", "V3"})
+    public String version;
+
+    @Param
+    public Mix mix;
+
+    private HPBenchmarkEnvironment environment;
+    private AbstractHPPipeline pipeline;
+    private ForwardingObjective[] adds;
+    private ForwardingObjective[] removes;
+    private int next;
+    private boolean removing;
+    private long submitted;
+
+    @Setup
+    public void setup() {
+        environment = new HPBenchmarkEnvironment("3800-24G-2SFP+", GROUPS);
+        pipeline = pipeline(version);
+        environment.start(pipeline);
+
+        adds = new ForwardingObjective[OBJECTIVES];
+        removes = new ForwardingObjective[OBJECTIVES];
+        Mix[] kinds = Mix.values();
+        for (int i = 0; i < OBJECTIVES; i++) {
+            Mix kind = mix == Mix.MIXED ? kinds[i % (kinds.length - 1)] : mix;
+            ForwardingObjective.Builder builder = DefaultForwardingObjective.builder()
+                    .withSelector(selector(kind, i))
+                    .withTreatment(treatment(kind, i))
+                    .withPriority(PRIORITY)
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .fromApp(HPBenchmarkEnvironment.APP_ID)
+                    .makePermanent();
+            adds[i] = builder.add(environment.completion());
+            removes[i] = builder.remove(environment.completion());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+
+    @Benchmark
+    public long forward() {
+        ForwardingObjective fwd = removing ? removes[next] : adds[next];
+        if (++next == OBJECTIVES) {
+            next = 0;
+            removing = !removing;
+        }
+
+        pipeline.forward(fwd);
+        environment.completion().await(++submitted);
+        return submitted;
+    }
+
+    private static AbstractHPPipeline pipeline(String version) {
+        switch (version) {
+            case "V1":
+                return new HPPipelineV1();
+            case "V2":
+                return new HPPipelineV2();
+            case "V3":
+                return new HPPipelineV3();
+            default:
+                throw new IllegalArgumentException("unknown pipeline " + version);
+        }
+    }
+
+    private static TrafficSelector selector(Mix kind, int i) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
+        switch (kind) {
+            case IPV4:
+                return selector.matchEthType(Ethernet.TYPE_IPV4)
+                        .matchIPProtocol(IPv4.PROTOCOL_TCP)
+                        .matchIPSrc(IpPrefix.valueOf(0x0a000000 | i, 32))
+                        .matchIPDst(IpPrefix.valueOf(0x0a010000 | i, 32))
+                        .matchTcpSrc(TpPort.tpPort(1024 + i))
+                        .matchTcpDst(TpPort.tpPort(80))
+                        .build();
+            case VLAN:
+                return selector.matchInPort(port(i))
+                        .matchVlanId(VlanId.vlanId((short) (i % 4000 + 2)))
+                        .build();
+            case CONTROLLER:
+                return selector.matchInPort(port(i))
+                        .matchEthType(Ethernet.TYPE_ARP)
+                        .matchEthSrc(MacAddress.valueOf(0x020000000000L | i))
+                        .build();
+            case L2:
+            case GROUP:
+            default:
+                return selector.matchEthDst(MacAddress.valueOf(0x020000000000L | i)).build();
+        }
+    }
+
+    private TrafficTreatment treatment(Mix kind, int i) {
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder();
+        switch (kind) {
+            case VLAN:
+                return treatment.setVlanId(VlanId.vlanId((short) (i % 4000 + 3)))
+                        .setOutput(port(i + 1))
+                        .build();
+            case CONTROLLER:
+                return treatment.punt().build();
+            case GROUP:
+                return treatment.group(environment.groupId(i)).build();
+            case L2:
+            case IPV4:
+            default:
+                return treatment.setOutput(port(i + 1)).build();
+        }
+    }
+
+    private static PortNumber port(int i) {
+        return PortNumber.portNumber(i % PORTS + 1);
+    }
+}
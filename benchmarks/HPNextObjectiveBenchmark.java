@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.drivers.hp;
+
+import org.onlab.packet.MacAddress;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextGroup;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  NextObjectives and the ForwardingObjectives referencing them by nextId.
+ *
+ *  serialize and deserialize measure the Kryo coding of the treatment of a SingleGroup, with the
+ *  KryoNamespace of the pipeline: SingleGroup.data() is the serialization of its treatment.
+ *
+ *  nextForward measures a round of groupCount NextObjectives, each followed by one
+ *  ForwardingObjective referencing it, then removed, on HPPipelineV3 with a FlowObjectiveStore
+ *  whose reads and writes take storeLatencyMicros. The arrival order decides how the forwards
+ *  find the treatment of their next:
+ *  INTERLEAVED sends each forward right after its next, NEXTS_FIRST sends all the nexts before
+ *  the forwards, STORE_ONLY leaves the nexts in the store only, as if they had been added by
+ *  another instance of ONOS. The pendingAddNext hits and misses of the round are reported as
+ *  auxiliary counters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HPNextObjectiveBenchmark {
+
+    /**
+     * Arrival orders of the NextObjectives and of the ForwardingObjectives.
+     */
+    public enum Order {
+        /** Each forward right after its next. */
+        INTERLEAVED,
+        /** All the nexts, then all the forwards. */
+        NEXTS_FIRST,
+        /** Nexts written to the store by another instance, then the forwards. */
+        STORE_ONLY
+    }
+
+    private static final int PRIORITY = 40000;
+    private static final int PORTS = 48;
+
+    /**
+     * Treatment of a NextObjective and its serialized form.
+     */
+    @State(Scope.Thread)
+    public static class Codec {
+
+        private KryoNamespace kryo;
+        private TrafficTreatment treatment;
+        private byte[] data;
+
+        @Setup
+        public void setup() {
+            kryo = new HPPipelineV3().appKryo;
+            treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(1)).build();
+            data = kryo.serialize(treatment);
+        }
+    }
+
+    /**
+     * A pipeline and the objectives of a round.
+     */
+    @State(Scope.Thread)
+    public static class Path {
+
+        @Param({"16", "256", "4096"})
+        public int groupCount;
+
+        @Param
+        public Order order;
+
+        @Param({"0", "50", "500"})
+        public long storeLatencyMicros;
+
+        private HPBenchmarkEnvironment environment;
+        private AbstractHPPipeline pipeline;
+        private NextObjective[] nextAdds;
+        private NextObjective[] nextRemoves;
+        private NextGroup[] nextGroups;
+        private ForwardingObjective[] forwardAdds;
+        private ForwardingObjective[] forwardRemoves;
+        private long submitted;
+
+        @Setup
+        public void setup() {
+            environment = new HPBenchmarkEnvironment("3800-24G-2SFP+", 0);
+            environment.objectiveStore().setLatencyMicros(storeLatencyMicros);
+            pipeline = new HPPipelineV3();
+            environment.start(pipeline);
+
+            nextAdds = new NextObjective[groupCount];
+            nextRemoves = new NextObjective[groupCount];
+            nextGroups = new NextGroup[groupCount];
+            forwardAdds = new ForwardingObjective[groupCount];
+            forwardRemoves = new ForwardingObjective[groupCount];
+            for (int i = 0; i < groupCount; i++) {
+                int nextId = i + 1;
+                TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                        .setOutput(PortNumber.portNumber(i % PORTS + 1))
+                        .build();
+                NextObjective.Builder next = DefaultNextObjective.builder()
+                        .withId(nextId)
+                        .withType(NextObjective.Type.SIMPLE)
+                        .fromApp(HPBenchmarkEnvironment.APP_ID)
+                        .addTreatment(treatment);
+                nextAdds[i] = next.add(environment.completion());
+                nextRemoves[i] = next.remove(environment.completion());
+                byte[] data = pipeline.appKryo.serialize(treatment);
+                nextGroups[i] = () -> data;
+
+                ForwardingObjective.Builder forward = DefaultForwardingObjective.builder()
+                        .withSelector(DefaultTrafficSelector.builder()
+                                              .matchEthDst(MacAddress.valueOf(0x020000000000L | i))
+                                              .build())
+                        .nextStep(nextId)
+                        .withPriority(PRIORITY)
+                        .withFlag(ForwardingObjective.Flag.VERSATILE)
+                        .fromApp(HPBenchmarkEnvironment.APP_ID)
+                        .makePermanent();
+                forwardAdds[i] = forward.add(environment.completion());
+                forwardRemoves[i] = forward.remove(environment.completion());
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            environment.stop();
+        }
+
+        // Submits a round of objectives and waits for all of them
+        void round() {
+            switch (order) {
+                case INTERLEAVED:
+                    for (int i = 0; i < groupCount; i++) {
+                        pipeline.next(nextAdds[i]);
+                        pipeline.forward(forwardAdds[i]);
+                    }
+                    submitted += 2L * groupCount;
+                    break;
+                case NEXTS_FIRST:
+                    for (NextObjective next : nextAdds) {
+                        pipeline.next(next);
+                    }
+                    for (ForwardingObjective forward : forwardAdds) {
+                        pipeline.forward(forward);
+                    }
+                    submitted += 2L * groupCount;
+                    break;
+                case STORE_ONLY:
+                default:
+                    for (int i = 0; i < groupCount; i++) {
+                        environment.objectiveStore().putNextGroup(i + 1, nextGroups[i]);
+                    }
+                    for (ForwardingObjective forward : forwardAdds) {
+                        pipeline.forward(forward);
+                    }
+                    submitted += groupCount;
+                    break;
+            }
+
+            // The REMOVE of a forward takes the NextGroup out of the store
+            for (ForwardingObjective forward : forwardRemoves) {
+                pipeline.forward(forward);
+            }
+            submitted += groupCount;
+            if (order != Order.STORE_ONLY) {
+                for (NextObjective next : nextRemoves) {
+                    pipeline.next(next);
+                }
+                submitted += groupCount;
+            }
+
+            environment.completion().await(submitted);
+        }
+    }
+
+    /**
+     * Lookups of pendingAddNext during the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PendingAddNext {
+
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public byte[] serialize(Codec codec) {
+        return codec.kryo.serialize(codec.treatment);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public TrafficTreatment deserialize(Codec codec) {
+        return codec.kryo.deserialize(codec.data);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void nextForward(Path path, PendingAddNext pending) {
+        long hits = path.environment.counter("nextCacheHits");
+        long misses = path.environment.counter("nextCacheMisses");
+        path.round();
+        pending.hits += path.environment.counter("nextCacheHits") - hits;
+        pending.misses += path.environment.counter("nextCacheMisses") - misses;
+    }
+}
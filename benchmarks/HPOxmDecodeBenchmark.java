@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.onosproject.drivers.hp;
+
+import org.onosproject.net.flow.criteria.Criterion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Decoding of the OXM ids of a MATCH property of TABLE_FEATURES, with the string-based
+ *  decoder that HPFeatures.ExtractTypes used before and with the current one.
+ *
+ *  The headers are the OPENFLOW_BASIC fields 0-39, each without and with the hasmask bit,
+ *  i.e. what a switch advertises for a table matching on all the basic fields, followed by an
+ *  OXM id of the EXPERIMENTER class: its header and the Nicira experimenter id. The current
+ *  decoder skips the experimenter id, that would otherwise be read as the NXM_0 header of ARP_TPA;
+ *  setup() checks it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HPOxmDecodeBenchmark {
+
+    private static final int OPENFLOW_BASIC = 0x8000;
+    private static final int FIELDS = 40;
+    private static final int EXPERIMENTER = 0xFFFF;
+    private static final int NICIRA_EXPERIMENTER_ID = 0x00002320;
+
+    private int[] headers;
+
+    @Setup
+    public void setup() {
+        headers = new int[FIELDS * 2 + 2];
+        for (int field = 0; field < FIELDS; field++) {
+            headers[field * 2] = header(field, false);
+            headers[field * 2 + 1] = header(field, true);
+        }
+        headers[FIELDS * 2] = EXPERIMENTER << 16 | 8;
+        headers[FIELDS * 2 + 1] = NICIRA_EXPERIMENTER_ID;
+
+        for (int i = 0; i < headers.length; i++) {
+            if (HPFeatures.ExtractTypes.isExperimenter(headers[i])) {
+                i++;
+            } else if (HPFeatures.ExtractTypes.getCriterion(headers[i]) == Criterion.Type.ARP_TPA) {
+                throw new IllegalStateException("experimenter id decoded as ARP_TPA");
+            }
+        }
+    }
+
+    @Benchmark
+    public void before(Blackhole bh) {
+        for (int header : headers) {
+            bh.consume(legacyGetCriterion(header));
+        }
+    }
+
+    @Benchmark
+    public void after(Blackhole bh) {
+        for (int i = 0; i < headers.length; i++) {
+            if (HPFeatures.ExtractTypes.isExperimenter(headers[i])) {
+                // Skip the experimenter id, as HPFeatures does
+                i++;
+                continue;
+            }
+            bh.consume(HPFeatures.ExtractTypes.getCriterion(headers[i]));
+        }
+    }
+
+    // OXM header of a field of the OPENFLOW_BASIC class, with a 4 bytes payload
+    private static int header(int field, boolean hasMask) {
+        return OPENFLOW_BASIC << 16 | field << 9 | (hasMask ? 1 << 8 : 0) | (hasMask ? 8 : 4);
+    }
+
+    /**
+     * The decoder of HPFeatures.ExtractTypes before the lookup tables, unchanged.
+     */
+    private static Criterion.Type legacyGetCriterion(int header) {
+        Logger log = LoggerFactory.getLogger("ExtractTypes");
+        // Converts the header to a binary string always padded to 32 bits.
+        String binString = String.format("%32s", Integer.toBinaryString(header)).replace(' ', '0');
+
+        int classType = Integer.parseInt(binString.substring(0, 16), 2);
+        if (classType == 65535) {
+            log.warn("Header is {}, cannot interpret class {}", binString, binString.substring(0, 16));
+            return null;
+        }
+
+        int index = Integer.parseInt(binString.substring(16, 23), 2);
+        if (classType == 0 || classType == 1) {
+            log.info("-------- NXM MESSAGE RECEIVED, IS {}", index);
+        }
+
+        switch (index) {
+            case 0:
+                return Criterion.Type.IN_PORT;
+            case 1:
+                return Criterion.Type.IN_PHY_PORT;
+            case 2:
+                return Criterion.Type.METADATA;
+            case 3:
+                return Criterion.Type.ETH_DST;
+            case 4:
+                return Criterion.Type.ETH_SRC;
+            case 5:
+                return Criterion.Type.ETH_TYPE;
+            case 6:
+                return Criterion.Type.VLAN_VID;
+            case 7:
+                return Criterion.Type.VLAN_PCP;
+            case 8:
+                return Criterion.Type.IP_DSCP;
+            case 9:
+                return Criterion.Type.IP_ECN;
+            case 10:
+                return Criterion.Type.IP_PROTO;
+            case 11:
+                return Criterion.Type.IPV4_SRC;
+            case 12:
+                return Criterion.Type.IPV4_DST;
+            case 13:
+                return Criterion.Type.TCP_SRC;
+            case 14:
+                return Criterion.Type.TCP_DST;
+            case 15:
+                return Criterion.Type.UDP_SRC;
+            case 16:
+                return Criterion.Type.UDP_DST;
+            case 17:
+                return Criterion.Type.SCTP_SRC;
+            case 18:
+                return Criterion.Type.SCTP_DST;
+            case 19:
+                return Criterion.Type.ICMPV4_TYPE;
+            case 20:
+                return Criterion.Type.ICMPV4_CODE;
+            case 21:
+                return Criterion.Type.ARP_OP;
+            case 22:
+                return Criterion.Type.ARP_SPA;
+            case 23:
+                return Criterion.Type.ARP_TPA;
+            case 24:
+                return Criterion.Type.ARP_SHA;
+            case 25:
+                return Criterion.Type.ARP_THA;
+            case 26:
+                return Criterion.Type.IPV6_SRC;
+            case 27:
+                return Criterion.Type.IPV6_DST;
+            case 28:
+                return Criterion.Type.IPV6_FLABEL;
+            case 29:
+                return Criterion.Type.ICMPV6_TYPE;
+            case 30:
+                return Criterion.Type.ICMPV6_CODE;
+            case 31:
+                return Criterion.Type.IPV6_ND_TARGET;
+            case 32:
+                return Criterion.Type.IPV6_ND_SLL;
+            case 33:
+                return Criterion.Type.IPV6_ND_TLL;
+            case 34:
+                return Criterion.Type.MPLS_LABEL;
+            case 35:
+                return Criterion.Type.MPLS_TC;
+            case 36:
+                return Criterion.Type.MPLS_BOS;
+            case 37:
+                return Criterion.Type.PBB_ISID;
+            case 38:
+                return Criterion.Type.TUNNEL_ID;
+            case 39:
+                return Criterion.Type.IPV6_EXTHDR;
+            default:
+                log.warn("Header is {}, cannot interpret criteria with substring {}, index {}",
+                         binString, binString.substring(16, 23), index);
+                return null;
+        }
+    }
+}